@@ -0,0 +1,133 @@
+package register2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+
+/**
+ * Times the MessageAnalytics queries over a large generated history on 1
+ * to N cores. Run it with "ant analytics-scaling" or directly with
+ * java -Xmx2g register2.AnalyticsScaling.
+ *
+ * The history is built once in MessageColumns: soak test bodies, a pool of
+ * senders and +27 recipients, timestamps spread over 30 days. Then, for each
+ * thread count, every query runs on a ForkJoinPool of that size, a few
+ * times to warm up and then the measured rounds. It prints the median time
+ * per query and the speedup over the first thread count, and checks every
+ * pool gives the same answers.
+ *
+ * Settings are system properties, all optional:
+ *   quickchat.scaling.rows        rows in the history, default 10000000
+ *   quickchat.scaling.threads     thread counts, default 1,2,4,... up to the cores
+ *   quickchat.scaling.rounds      measured rounds per query, default 5
+ *   quickchat.scaling.senders     distinct senders, default 1000
+ *   quickchat.scaling.recipients  distinct recipients, default 100000
+ *   quickchat.scaling.seed        random seed, default 42
+ */
+public class AnalyticsScaling {
+
+    private static final int WARMUP_ROUNDS = 2;
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    private static final String[] QUERIES = {"perUser", "top10", "lengths", "hourly"};
+
+    public static void main(String[] args) {
+        int rows = Integer.getInteger("quickchat.scaling.rows", 10000000);
+        int rounds = Integer.getInteger("quickchat.scaling.rounds", 5);
+        int senderCount = Integer.getInteger("quickchat.scaling.senders", 1000);
+        int recipientCount = Integer.getInteger("quickchat.scaling.recipients", 100000);
+        long seed = Long.getLong("quickchat.scaling.seed", 42);
+        int[] threads = threadCounts(System.getProperty("quickchat.scaling.threads"));
+
+        MessageLoader.awaitReady();
+        Random random = new Random(seed);
+        String[] senders = new String[senderCount];
+        for (int i = 0; i < senderCount; i++) {
+            senders[i] = "user" + i;
+        }
+        String[] recipients = new String[recipientCount];
+        for (int i = 0; i < recipientCount; i++) {
+            recipients[i] = "+2783" + String.format("%07d", random.nextInt(10000000));
+        }
+        long start = System.nanoTime();
+        long first = System.currentTimeMillis() - 30 * DAY_MILLIS;
+        MessageColumns columns = new MessageColumns();
+        for (int i = 0; i < rows; i++) {
+            columns.append(1 + i % 10, first + (long) (random.nextDouble() * 30 * DAY_MILLIS),
+                    senders[random.nextInt(senderCount)], recipients[random.nextInt(recipientCount)],
+                    SoakTest.body(random));
+        }
+        MessageColumns.Rows history = columns.rows();
+        System.out.printf(Locale.ROOT, "rows: %d, built in %d ms, cores: %d%n", rows,
+                (System.nanoTime() - start) / 1000000, Runtime.getRuntime().availableProcessors());
+        System.out.printf("%-8s %-8s %10s %10s%n", "threads", "query", "median ms", "speedup");
+
+        double[] baseline = new double[QUERIES.length];
+        List<Object> expected = null;
+        for (int t = 0; t < threads.length; t++) {
+            ForkJoinPool pool = new ForkJoinPool(threads[t]);
+            try {
+                MessageAnalytics analytics = MessageAnalytics.of(history, pool);
+                List<Object> answers = new ArrayList<>();
+                for (int q = 0; q < QUERIES.length; q++) {
+                    Function<MessageAnalytics, Object> query = query(QUERIES[q]);
+                    double[] millis = new double[rounds];
+                    Object answer = null;
+                    for (int r = -WARMUP_ROUNDS; r < rounds; r++) {
+                        long began = System.nanoTime();
+                        answer = query.apply(analytics);
+                        if (r >= 0) {
+                            millis[r] = (System.nanoTime() - began) / 1e6;
+                        }
+                    }
+                    answers.add(answer);
+                    Arrays.sort(millis);
+                    double median = millis[rounds / 2];
+                    if (t == 0) {
+                        baseline[q] = median;
+                    }
+                    System.out.printf(Locale.ROOT, "%-8d %-8s %10.1f %9.2fx%n", threads[t], QUERIES[q], median,
+                            baseline[q] / median);
+                }
+                if (expected == null) {
+                    expected = answers;
+                } else if (!expected.equals(answers)) {
+                    System.out.println("  answers differ from " + threads[0] + " thread(s)");
+                }
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private static Function<MessageAnalytics, Object> query(String name) {
+        switch (name) {
+            case "perUser":
+                return MessageAnalytics::messagesPerUser;
+            case "top10":
+                return a -> a.topRecipients(10);
+            case "lengths":
+                return a -> Arrays.toString(a.lengthPercentiles(50, 90, 99, 100));
+            default:
+                return a -> a.activity(60 * 60 * 1000);
+        }
+    }
+
+    // 1, 2, 4, ... and the number of cores, unless a list is given
+    private static int[] threadCounts(String setting) {
+        if (setting != null) {
+            return Arrays.stream(setting.split(",")).mapToInt(s -> Integer.parseInt(s.trim())).toArray();
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> counts = new ArrayList<>();
+        for (int n = 1; n < cores; n *= 2) {
+            counts.add(n);
+        }
+        counts.add(cores);
+        return counts.stream().mapToInt(Integer::intValue).toArray();
+    }
+}
@@ -0,0 +1,134 @@
+package register2;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.ref.Reference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import userdatastore.SymbolTable;
+
+/**
+ * Measures how much heap a message history takes in each layout. Run it
+ * with "ant column-footprint" or directly with java register2.ColumnFootprint
+ * (give it a big enough -Xmx).
+ *
+ * The same generated rows (soak test bodies, a few hundred senders, +27
+ * recipients) are held three ways, one at a time:
+ *   strings   plain objects holding their own five fields and Strings, as
+ *             Message did before senders and recipients were interned
+ *   message   Message objects as the app holds them now, sender and
+ *             recipient shared through the SymbolTable
+ *   columns   MessageColumns, as the disregarded history is kept
+ * For each it prints the heap used after a full GC, bytes per row and the
+ * time to build it, then how many times the columns' heap the others take.
+ * Senders and recipients are interned before the first measurement, since
+ * the app interns them anyway.
+ *
+ * Settings are system properties, all optional:
+ *   quickchat.footprint.rows     rows per layout, default 1000000
+ *   quickchat.footprint.senders  distinct senders, default 500
+ *   quickchat.footprint.seed     random seed, default 42
+ */
+public class ColumnFootprint {
+
+    // The fields Message had before interning, each row holding its own Strings
+    private static final class PlainMessage {
+        final String sender;
+        final String recipient;
+        final String content;
+        final String messageID;
+        final long timestamp;
+
+        PlainMessage(String sender, String recipient, String content, String messageID, long timestamp) {
+            this.sender = sender;
+            this.recipient = recipient;
+            this.content = content;
+            this.messageID = messageID;
+            this.timestamp = timestamp;
+        }
+    }
+
+    public static void main(String[] args) {
+        int rows = Integer.getInteger("quickchat.footprint.rows", 1000000);
+        int senderCount = Integer.getInteger("quickchat.footprint.senders", 500);
+        long seed = Long.getLong("quickchat.footprint.seed", 42);
+
+        MessageLoader.awaitReady();
+        String[] senders = new String[senderCount];
+        for (int i = 0; i < senderCount; i++) {
+            senders[i] = SymbolTable.shared().canonical("user" + i);
+        }
+        System.out.println("rows: " + rows + ", senders: " + senderCount);
+        System.out.printf("%-8s %12s %10s %10s%n", "layout", "heap MB", "bytes/row", "build ms");
+
+        // The app interns every sender and recipient anyway, so do it up front
+        Random pass = new Random(seed);
+        for (int i = 0; i < rows; i++) {
+            pass.nextInt(senders.length);
+            SymbolTable.shared().intern(recipient(pass));
+            SoakTest.body(pass);
+        }
+
+        String[] names = {"strings", "message", "columns"};
+        long[] used = new long[names.length];
+        for (int layout = 0; layout < names.length; layout++) {
+            long before = usedHeap();
+            long start = System.nanoTime();
+            Object held = build(layout, rows, senders, new Random(seed));
+            long millis = (System.nanoTime() - start) / 1000000;
+            used[layout] = usedHeap() - before;
+            Reference.reachabilityFence(held);
+            System.out.printf(Locale.ROOT, "%-8s %12.1f %10.1f %10d%n", names[layout], used[layout] / 1e6,
+                    (double) used[layout] / rows, millis);
+        }
+        System.out.println();
+        for (int layout = 0; layout < names.length - 1; layout++) {
+            System.out.printf(Locale.ROOT, "%s takes %.2fx the heap of columns%n", names[layout],
+                    (double) used[layout] / used[names.length - 1]);
+        }
+    }
+
+    private static Object build(int layout, int rows, String[] senders, Random random) {
+        switch (layout) {
+            case 0: {
+                List<PlainMessage> list = new ArrayList<>();
+                for (int i = 0; i < rows; i++) {
+                    list.add(new PlainMessage(new String(senders[random.nextInt(senders.length)]),
+                            recipient(random), SoakTest.body(random), String.valueOf(1 + i % 10), i));
+                }
+                return list;
+            }
+            case 1: {
+                List<Message> list = new ArrayList<>();
+                for (int i = 0; i < rows; i++) {
+                    list.add(new Message(senders[random.nextInt(senders.length)], recipient(random),
+                            SoakTest.body(random), String.valueOf(1 + i % 10), i));
+                }
+                return list;
+            }
+            default: {
+                MessageColumns columns = new MessageColumns();
+                for (int i = 0; i < rows; i++) {
+                    columns.append(1 + i % 10, i, senders[random.nextInt(senders.length)], recipient(random),
+                            SoakTest.body(random));
+                }
+                return columns;
+            }
+        }
+    }
+
+    private static String recipient(Random random) {
+        return "+2783" + String.format("%07d", random.nextInt(10000000));
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,164 @@
+package register2;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures what dictionary compression saves on disk and costs in CPU.
+ * Run it with "ant compression-benchmark" or directly with
+ * java register2.CompressionBenchmark.
+ *
+ * Bodies come from a text file, one per line, or else from the soak test's
+ * generator. The first bodies train a dictionary; the rest are written as
+ * stored-message JSON records, once plain and once with the dictionary,
+ * the way MessageJson writes them. For each training size it prints the
+ * dictionary size, the record bytes with and without compression, how many
+ * bodies were left plain because they didn't shrink, and the CPU time and
+ * p50/p99 latency to encode and decode one body.
+ *
+ * Settings are system properties, all optional:
+ *   quickchat.compressbench.input     file of bodies, one per line
+ *   quickchat.compressbench.messages  bodies measured, default 20000
+ *   quickchat.compressbench.train     training sizes, default 16,64,256,2000
+ *   quickchat.compressbench.maxDictionary  dictionary cap in bytes, default 32768
+ *   quickchat.compressbench.seed      random seed, default 42
+ */
+public class CompressionBenchmark {
+
+    private static final int WARMUP_ROUNDS = 3;
+
+    public static void main(String[] args) throws IOException {
+        int count = Integer.getInteger("quickchat.compressbench.messages", 20000);
+        long seed = Long.getLong("quickchat.compressbench.seed", 42);
+        String input = System.getProperty("quickchat.compressbench.input");
+        int[] trainSizes = parseSizes(System.getProperty("quickchat.compressbench.train", "16,64,256,2000"));
+        int maxDictionary = Integer.getInteger("quickchat.compressbench.maxDictionary", DictionaryCodec.MAX_DICTIONARY_SIZE);
+        int maxTrain = 0;
+        for (int size : trainSizes) {
+            maxTrain = Math.max(maxTrain, size);
+        }
+
+        MessageLoader.awaitReady();
+        List<String> bodies = new ArrayList<>();
+        if (input != null) {
+            for (String line : Files.readAllLines(Paths.get(input), StandardCharsets.UTF_8)) {
+                if (!line.isEmpty()) {
+                    bodies.add(line);
+                }
+            }
+        } else {
+            Random random = new Random(seed);
+            while (bodies.size() < maxTrain + count) {
+                bodies.add(SoakTest.body(random));
+            }
+        }
+        if (bodies.size() <= maxTrain) {
+            throw new IllegalArgumentException("Need more than " + maxTrain + " bodies, got " + bodies.size());
+        }
+        List<String> training = bodies.subList(0, maxTrain);
+        List<Message> measured = new ArrayList<>();
+        for (String body : bodies.subList(maxTrain, Math.min(bodies.size(), maxTrain + count))) {
+            measured.add(new Message("+27831234567", "+27830001234", body, "1", 1700000000000L));
+        }
+
+        MessageJson.setCodec(ContentCodec.NONE);
+        long plainBytes = recordBytes(measured);
+        long bodyBytes = 0;
+        for (Message m : measured) {
+            bodyBytes += m.getContent().getBytes(StandardCharsets.UTF_8).length;
+        }
+        System.out.printf(Locale.ROOT, "%d bodies measured, %.1f bytes on average; plain records %d bytes%n%n",
+                measured.size(), (double) bodyBytes / measured.size(), plainBytes);
+        System.out.printf("%8s %8s %12s %7s %7s %9s %9s %9s %9s %9s%n", "trained", "dict B", "records B", "saved",
+                "plain", "enc ns", "enc p99", "dec ns", "dec p99", "net B");
+
+        for (int size : trainSizes) {
+            DictionaryCodec codec = new DictionaryCodec(nonEmpty(
+                    DictionaryCodec.train(training.subList(training.size() - size, training.size()),
+                            maxDictionary)));
+            MessageJson.setCodec(codec);
+            long compressedBytes = recordBytes(measured);
+            MessageJson.setCodec(ContentCodec.NONE);
+
+            List<byte[]> encoded = new ArrayList<>(measured.size());
+            int passthrough = 0;
+            for (Message m : measured) {
+                byte[] e = codec.encode(m.getContent());
+                encoded.add(e);
+                if (codec.isPassthrough(e)) {
+                    passthrough++;
+                }
+            }
+            SoakTest.Histogram encodeNanos = new SoakTest.Histogram();
+            SoakTest.Histogram decodeNanos = new SoakTest.Histogram();
+            long encodeCpu = 0;
+            long decodeCpu = 0;
+            for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+                encodeNanos.reset();
+                decodeNanos.reset();
+                encodeCpu = timeEncode(codec, measured, encodeNanos);
+                decodeCpu = timeDecode(codec, encoded, decodeNanos);
+            }
+
+            int dictionaryBytes = codec.getDictionary().length;
+            System.out.printf(Locale.ROOT, "%8d %8d %12d %6.1f%% %6.1f%% %9d %9d %9d %9d %9d%n", size, dictionaryBytes,
+                    compressedBytes, 100.0 * (plainBytes - compressedBytes) / plainBytes,
+                    100.0 * passthrough / measured.size(), encodeCpu / measured.size(), encodeNanos.percentile(99),
+                    decodeCpu / measured.size(), decodeNanos.percentile(99),
+                    plainBytes - compressedBytes - dictionaryBytes);
+        }
+        System.out.println();
+        System.out.println("enc/dec ns: CPU time per body; p99: wall time per body. net B: bytes saved less the dictionary.");
+    }
+
+    // Bytes of the records as the file store's snapshot would hold them
+    private static long recordBytes(List<Message> messages) {
+        return MessageJson.gson().toJson(messages).getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static long timeEncode(DictionaryCodec codec, List<Message> messages, SoakTest.Histogram latency) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long cpu = threads.getCurrentThreadCpuTime();
+        for (Message m : messages) {
+            long start = System.nanoTime();
+            codec.encode(m.getContent());
+            latency.record(System.nanoTime() - start);
+        }
+        return threads.getCurrentThreadCpuTime() - cpu;
+    }
+
+    private static long timeDecode(DictionaryCodec codec, List<byte[]> encoded, SoakTest.Histogram latency) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long cpu = threads.getCurrentThreadCpuTime();
+        for (byte[] e : encoded) {
+            long start = System.nanoTime();
+            codec.decode(e);
+            latency.record(System.nanoTime() - start);
+        }
+        return threads.getCurrentThreadCpuTime() - cpu;
+    }
+
+    private static byte[] nonEmpty(byte[] dictionary) {
+        if (dictionary.length == 0) {
+            throw new IllegalArgumentException("Training found no repeated words; use more or longer bodies");
+        }
+        return dictionary;
+    }
+
+    private static int[] parseSizes(String list) {
+        String[] parts = list.split(",");
+        int[] sizes = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            sizes[i] = Integer.parseInt(parts[i].trim());
+        }
+        return sizes;
+    }
+}
@@ -0,0 +1,33 @@
+package register2;
+
+/**
+ * Encodes message bodies for storage. Implementations must be thread safe
+ * and decode(encode(x)) must return x.
+ */
+public interface ContentCodec {
+
+    /** Stores content as-is. */
+    ContentCodec NONE = new ContentCodec() {
+        @Override
+        public byte[] encode(String content) {
+            return content.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String decode(byte[] encoded) {
+            return new String(encoded, java.nio.charset.StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public boolean isPassthrough(byte[] encoded) {
+            return true;
+        }
+    };
+
+    byte[] encode(String content);
+
+    String decode(byte[] encoded);
+
+    /** True if encode() fell back to storing the raw bytes for this value. */
+    boolean isPassthrough(byte[] encoded);
+}
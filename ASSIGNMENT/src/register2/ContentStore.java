@@ -0,0 +1,139 @@
+package register2;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Message bodies stored once per distinct content, keyed by SHA-256 digest.
+ * Messages holding the same body all point at one shared String, and each
+ * blob counts how many stored messages refer to it.
+ *
+ * A blob whose count drops to zero is not removed on the delete path; it is
+ * queued and dropped by a background sweep, unless it was picked up again
+ * in the meantime (a deleted body is often re-sent straight away).
+ */
+public class ContentStore {
+
+    static final long SWEEP_MILLIS = 30_000;
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    });
+
+    private final Map<String, Blob> blobs = new ConcurrentHashMap<>();
+    private final Queue<String> unreferenced = new ConcurrentLinkedQueue<>();
+    private ScheduledExecutorService collector;
+
+    private static class Blob {
+        final String content;
+        int refs;
+
+        Blob(String content) {
+            this.content = content;
+        }
+    }
+
+    /** Adds a reference to the body and returns the shared copy of it. */
+    public String acquire(String content) {
+        if (content == null) {
+            return null;
+        }
+        Blob blob = blobs.compute(digest(content), (k, b) -> {
+            Blob held = b == null ? new Blob(content) : b;
+            held.refs++;
+            return held;
+        });
+        return blob.content;
+    }
+
+    /**
+     * Drops a reference to the body. Returns true if that was the last one;
+     * the blob itself goes on the next sweep.
+     */
+    public boolean release(String content) {
+        if (content == null) {
+            return false;
+        }
+        String key = digest(content);
+        boolean[] last = new boolean[1];
+        blobs.computeIfPresent(key, (k, b) -> {
+            if (b.refs > 0 && --b.refs == 0) {
+                last[0] = true;
+            }
+            return b;
+        });
+        if (last[0]) {
+            unreferenced.add(key);
+            startCollector();
+        }
+        return last[0];
+    }
+
+    /** Number of stored messages currently referring to this body. */
+    public int references(String content) {
+        Blob blob = content == null ? null : blobs.get(digest(content));
+        return blob == null ? 0 : blob.refs;
+    }
+
+    /** Distinct bodies held, including unreferenced ones not swept yet. */
+    public int size() {
+        return blobs.size();
+    }
+
+    /** Forgets every blob, e.g. before the message state is reloaded. */
+    public void clear() {
+        blobs.clear();
+        unreferenced.clear();
+    }
+
+    /** Removes blobs that are still unreferenced. Returns how many went. */
+    int sweep() {
+        int removed = 0;
+        String key;
+        while ((key = unreferenced.poll()) != null) {
+            boolean[] gone = new boolean[1];
+            blobs.computeIfPresent(key, (k, b) -> {
+                gone[0] = b.refs == 0;
+                return gone[0] ? null : b;
+            });
+            if (gone[0]) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private synchronized void startCollector() {
+        if (collector != null) {
+            return;
+        }
+        collector = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "content-collector");
+            t.setDaemon(true);
+            return t;
+        });
+        collector.scheduleWithFixedDelay(this::sweep, SWEEP_MILLIS, SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Hex SHA-256 of the body's UTF-8 bytes. */
+    static String digest(String content) {
+        byte[] hash = SHA256.get().digest(content.getBytes(StandardCharsets.UTF_8));
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,158 @@
+package register2;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate with a preset dictionary trained from past messages. Short chat
+ * messages barely compress on their own, but most of their words and
+ * phrases already appear in the dictionary.
+ *
+ * Encoded form is one flag byte then the payload: RAW for content that did
+ * not get smaller (the adaptive bypass), DEFLATED for raw deflate output.
+ */
+public class DictionaryCodec implements ContentCodec {
+
+    static final byte RAW = 0;
+    static final byte DEFLATED = 1;
+
+    /** Deflate only looks back 32KB, so a larger dictionary is wasted. */
+    public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+    private final byte[] dictionary;
+
+    public DictionaryCodec(byte[] dictionary) {
+        if (dictionary.length == 0 || dictionary.length > MAX_DICTIONARY_SIZE) {
+            throw new IllegalArgumentException("Dictionary must be 1 to " + MAX_DICTIONARY_SIZE + " bytes");
+        }
+        this.dictionary = dictionary.clone();
+    }
+
+    public byte[] getDictionary() {
+        return dictionary.clone();
+    }
+
+    /**
+     * Builds a dictionary from sample bodies. Words and word pairs are scored
+     * by how many bytes they would save; the best ones go last, where deflate
+     * can reach them with the shortest distances.
+     */
+    public static byte[] train(Collection<String> samples, int maxSize) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (String sample : samples) {
+            String[] words = sample.split("\\s+");
+            for (int i = 0; i < words.length; i++) {
+                if (words[i].length() > 1) {
+                    counts.merge(words[i] + " ", 1, Integer::sum);
+                }
+                if (i + 1 < words.length) {
+                    counts.merge(words[i] + " " + words[i + 1] + " ", 1, Integer::sum);
+                }
+            }
+        }
+        List<Map.Entry<String, Integer>> ranked = new ArrayList<>();
+        for (Map.Entry<String, Integer> e : counts.entrySet()) {
+            if (e.getValue() > 1) {
+                ranked.add(e);
+            }
+        }
+        ranked.sort((a, b) -> Long.compare(
+                (long) b.getValue() * b.getKey().length(), (long) a.getValue() * a.getKey().length()));
+
+        List<byte[]> picked = new ArrayList<>();
+        int size = 0;
+        for (Map.Entry<String, Integer> e : ranked) {
+            byte[] bytes = e.getKey().getBytes(StandardCharsets.UTF_8);
+            if (size + bytes.length > maxSize) {
+                continue;
+            }
+            picked.add(bytes);
+            size += bytes.length;
+        }
+        byte[] dictionary = new byte[size];
+        int pos = size;
+        for (byte[] bytes : picked) {
+            pos -= bytes.length;
+            System.arraycopy(bytes, 0, dictionary, pos, bytes.length);
+        }
+        return dictionary;
+    }
+
+    @Override
+    public byte[] encode(String content) {
+        byte[] raw = content.getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setDictionary(dictionary);
+            deflater.setInput(raw);
+            deflater.finish();
+            byte[] buffer = new byte[raw.length + 64];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            if (length >= raw.length) {
+                return tag(RAW, raw, raw.length);
+            }
+            return tag(DEFLATED, buffer, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] tag(byte flag, byte[] payload, int length) {
+        byte[] out = new byte[length + 1];
+        out[0] = flag;
+        System.arraycopy(payload, 0, out, 1, length);
+        return out;
+    }
+
+    @Override
+    public String decode(byte[] encoded) {
+        if (encoded.length == 0) {
+            throw new IllegalArgumentException("Empty encoded content");
+        }
+        if (encoded[0] == RAW) {
+            return new String(encoded, 1, encoded.length - 1, StandardCharsets.UTF_8);
+        }
+        if (encoded[0] != DEFLATED) {
+            throw new IllegalArgumentException("Unknown content encoding: " + encoded[0]);
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setDictionary(dictionary);
+            inflater.setInput(encoded, 1, encoded.length - 1);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(encoded.length * 4);
+            byte[] buffer = new byte[512];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated compressed content");
+                }
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt compressed content", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public boolean isPassthrough(byte[] encoded) {
+        return encoded.length > 0 && encoded[0] == RAW;
+    }
+}
@@ -0,0 +1,80 @@
+package register2;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Stored messages as storedMessages.json plus the storedMessages.delta
+ * change log, in one directory. Each store or remove is one appended,
+ * fsynced log line; after every quickchat.snapshotEvery of them the store
+ * asks for the full list and rewrites the snapshot, keeping the one before
+ * it as storedMessages.json.prev and listing both snapshots' checksums in
+ * storedMessages.checksums. See {@link MessageCheckpoint} for how a
+ * crash or a damaged snapshot is recovered from.
+ */
+public class FileMessageStore implements MessageStore {
+
+    private final Path dir;
+    private final MessageCheckpoint checkpoint;
+    private volatile boolean directoryReady;
+    private volatile long bytesRead;
+
+    public FileMessageStore(Path dir) {
+        this.dir = dir;
+        this.checkpoint = new MessageCheckpoint(dir);
+    }
+
+    @Override
+    public String name() {
+        return "file";
+    }
+
+    public Path getDirectory() {
+        return dir;
+    }
+
+    @Override
+    public List<Message> load() throws IOException {
+        bytesRead = 0;
+        MessageCheckpoint.Recovery recovery = checkpoint.recover();
+        bytesRead = recovery.bytesRead;
+        return recovery.messages;
+    }
+
+    @Override
+    public boolean store(List<Message> messages) throws IOException {
+        createDirectory();
+        return checkpoint.appendStoreAll(messages);
+    }
+
+    @Override
+    public boolean remove(String messageID) throws IOException {
+        createDirectory();
+        return checkpoint.appendRemove(messageID);
+    }
+
+    @Override
+    public long replaceAll(List<Message> messages) throws IOException {
+        createDirectory();
+        byte[] json = MessageJson.gson().toJson(messages).getBytes(StandardCharsets.UTF_8);
+        checkpoint.writeSnapshot(json);
+        return json.length;
+    }
+
+    /** The snapshot plus the delta log, as read by the last load. */
+    @Override
+    public long bytesRead() {
+        return bytesRead;
+    }
+
+    // The directory may not exist yet on first run; made on first write
+    private void createDirectory() throws IOException {
+        if (!directoryReady) {
+            Files.createDirectories(dir);
+            directoryReady = true;
+        }
+    }
+}
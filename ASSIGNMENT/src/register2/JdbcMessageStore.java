@@ -0,0 +1,214 @@
+package register2;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stored messages in an embedded SQL database over JDBC, such as H2
+ * (jdbc:h2:./storedMessages) or SQLite (jdbc:sqlite:storedMessages.db).
+ * Only java.sql is used; the driver jar just has to be on the class path.
+ *
+ * Each message is one row: its ID, a sequence number that keeps the stored
+ * order, and the message as the same JSON record the file store writes.
+ * Every call is one transaction. The connection is opened on first use and
+ * kept until {@link #close}. How durable a commit is depends on the
+ * database: SQLite syncs each one to disk by default, H2 does not.
+ */
+public class JdbcMessageStore implements MessageStore {
+
+    static final String TABLE = "stored_messages";
+
+    private final String url;
+    private Connection connection;
+    private long nextSequence;
+    // Whether the table had rows when opened or has been written since; load() returns null until then
+    private boolean written;
+    private long bytesRead;
+
+    public JdbcMessageStore(String url) {
+        this.url = url;
+    }
+
+    /** An H2 database next to where the file store would keep its files. */
+    static String defaultUrl(Path dir) {
+        return "jdbc:h2:" + dir.toAbsolutePath().normalize().resolve("storedMessages");
+    }
+
+    @Override
+    public String name() {
+        return "jdbc";
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    private Connection connection() throws SQLException {
+        if (connection == null) {
+            Connection c = DriverManager.getConnection(url);
+            try (Statement st = c.createStatement()) {
+                st.execute("CREATE TABLE IF NOT EXISTS " + TABLE
+                        + " (message_id VARCHAR(32) PRIMARY KEY, seq BIGINT NOT NULL, body VARCHAR(1000000) NOT NULL)");
+                try (ResultSet rs = st.executeQuery("SELECT MAX(seq), COUNT(*) FROM " + TABLE)) {
+                    rs.next();
+                    nextSequence = rs.getLong(1) + 1;
+                    written = rs.getLong(2) > 0;
+                }
+                c.setAutoCommit(false);
+            } catch (SQLException e) {
+                c.close();
+                throw e;
+            }
+            connection = c;
+        }
+        return connection;
+    }
+
+    @Override
+    public synchronized List<Message> load() throws IOException {
+        try {
+            Connection c = connection();
+            List<Message> messages = new ArrayList<>();
+            long bytes = 0;
+            try (Statement st = c.createStatement();
+                 ResultSet rs = st.executeQuery("SELECT body FROM " + TABLE + " ORDER BY seq")) {
+                while (rs.next()) {
+                    String body = rs.getString(1);
+                    bytes += utf8Length(body);
+                    messages.add(MessageJson.gson().fromJson(body, Message.class));
+                }
+            }
+            c.commit();
+            bytesRead = bytes;
+            return written ? messages : null;
+        } catch (SQLException | RuntimeException e) {
+            throw new IOException("Could not read stored messages from " + url + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public synchronized boolean store(List<Message> messages) throws IOException {
+        Map<String, Message> latest = latestByID(messages);
+        inTransaction("store messages in", c -> {
+            delete(c, latest.keySet());
+            insert(c, latest.values());
+        });
+        return false;
+    }
+
+    @Override
+    public synchronized boolean remove(String messageID) throws IOException {
+        inTransaction("remove a message from", c -> delete(c, Collections.singleton(messageID)));
+        return false;
+    }
+
+    @Override
+    public synchronized long replaceAll(List<Message> messages) throws IOException {
+        Map<String, Message> latest = latestByID(messages);
+        long[] bytes = new long[1];
+        inTransaction("replace messages in", c -> {
+            try (Statement st = c.createStatement()) {
+                st.executeUpdate("DELETE FROM " + TABLE);
+            }
+            nextSequence = 1;
+            bytes[0] = insert(c, latest.values());
+        });
+        return bytes[0];
+    }
+
+    /** Bytes of JSON bodies the last load read; the database's own overhead isn't counted. */
+    @Override
+    public synchronized long bytesRead() {
+        return bytesRead;
+    }
+
+    private interface Work {
+        void run(Connection c) throws SQLException;
+    }
+
+    // Runs the work as one transaction; on failure nothing it did is kept
+    private void inTransaction(String what, Work work) throws IOException {
+        long sequence = nextSequence;
+        try {
+            Connection c = connection();
+            try {
+                work.run(c);
+                c.commit();
+                written = true;
+            } catch (SQLException | RuntimeException e) {
+                nextSequence = sequence;
+                c.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not " + what + " " + url + ": " + e.getMessage(), e);
+        }
+    }
+
+    // Within one batch the last message with an ID wins, as it would one at a time
+    private static Map<String, Message> latestByID(List<Message> messages) {
+        Map<String, Message> byID = new LinkedHashMap<>();
+        for (Message msg : messages) {
+            byID.remove(msg.getMessageID());
+            byID.put(msg.getMessageID(), msg);
+        }
+        return byID;
+    }
+
+    private static void delete(Connection c, Iterable<String> ids) throws SQLException {
+        try (PreparedStatement st = c.prepareStatement("DELETE FROM " + TABLE + " WHERE message_id = ?")) {
+            for (String id : ids) {
+                st.setString(1, id);
+                st.addBatch();
+            }
+            st.executeBatch();
+        }
+    }
+
+    // Returns the bytes of JSON bodies inserted
+    private long insert(Connection c, Iterable<Message> messages) throws SQLException {
+        long bytes = 0;
+        try (PreparedStatement st = c.prepareStatement("INSERT INTO " + TABLE + " (message_id, seq, body) VALUES (?, ?, ?)")) {
+            for (Message msg : messages) {
+                String body = MessageJson.gson().toJson(msg, Message.class);
+                bytes += utf8Length(body);
+                st.setString(1, msg.getMessageID());
+                st.setLong(2, nextSequence++);
+                st.setString(3, body);
+                st.addBatch();
+            }
+            st.executeBatch();
+        }
+        return bytes;
+    }
+
+    private static long utf8Length(String text) {
+        return text.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            throw new IOException("Could not close " + url + ": " + e.getMessage(), e);
+        } finally {
+            connection = null;
+        }
+    }
+}
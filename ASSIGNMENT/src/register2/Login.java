@@ -5,6 +5,8 @@
 package register2;
 
 import javax.swing.JOptionPane;
+import userdatastore.LoginThrottle;
+import userdatastore.SessionRegistry;
 import userdatastore.userdatastore;
 /**
  *
@@ -148,21 +150,26 @@ public class Login extends javax.swing.JFrame {
         String username=userTextField.getText();
         String password=new String(PasswordField.getPassword());
         
+        if(!LoginThrottle.allowLogin(username, LoginThrottle.localSource())){
+            JOptionPane.showMessageDialog(this,"Too many login attempts. Please wait a minute and try again.");
+            return;
+        }
         if(userdatastore.userCredentials.containsKey(username) && 
                 userdatastore.userCredentials.get(username).equals(password)){
             JOptionPane.showMessageDialog(this,"Welcome " + username+ ",it is good to see you again");
             userTextField.setText("");
             PasswordField.setText("_");
-        
-    
- 
+            String sessionToken = SessionRegistry.shared().login(username);
+            new Quickchat(sessionToken).setVisible(true);
+        } else {
+            JOptionPane.showMessageDialog(this, "Incorrect username or password.");
+        }
     }//GEN-LAST:event_jButton1ActionPerformed
-    new Quickchat("Quickchat ").setVisible(true);
-    }
     /**
      * @param args the command line arguments
      */
     public static void main(String args[]) {
+        MessageEvents.startContinuousRecording();
         /* Set the Nimbus look and feel */
         //<editor-fold defaultstate="collapsed" desc=" Look and feel setting code (optional) ">
         /* If Nimbus (introduced in Java SE 6) is not available, stay with the default look and feel.
@@ -185,15 +192,41 @@ public class Login extends javax.swing.JFrame {
             java.util.logging.Logger.getLogger(Login.class.getName()).log(java.util.logging.Level.SEVERE, null, ex);
         }
         //</editor-fold>
+        if (StartupBenchmark.trainHeadless()) {
+            return;
+        }
 
         /* Create and display the form */
         java.awt.EventQueue.invokeLater(new Runnable() {
             public void run() {
-                new Login().setVisible(true);
+                Login login = new Login();
+                login.addWindowListener(new java.awt.event.WindowAdapter() {
+                    @Override
+                    public void windowOpened(java.awt.event.WindowEvent e) {
+                        startBackgroundServices();
+                        StartupBenchmark.firstFrameShown(login);
+                    }
+                });
+                login.setVisible(true);
             }
         });
     }
 
+    /**
+     * Loads the message history and starts replication and the outbox. Held
+     * back until the login form has opened so none of it competes with the
+     * first frame; anything that needs the history waits for it to load.
+     */
+    static void startBackgroundServices() {
+        MessageLoader.start();
+        Thread services = new Thread(() -> {
+            MessageReplication.startFromProperties();
+            Outbox.startFromProperties();
+        }, "startup-services");
+        services.setDaemon(true);
+        services.start();
+    }
+
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private javax.swing.JPasswordField PasswordField;
     private javax.swing.JButton jButton1;
@@ -0,0 +1,113 @@
+package register2;
+
+import java.util.Arrays;
+
+/**
+ * Counts per long key in an open-addressing table of two parallel arrays,
+ * for MessageAnalytics. No boxing, and the table grows with the keys
+ * actually seen rather than the number that could be, so each fork-join
+ * leaf keeps a small one of its own and the leaves are merged pairwise.
+ * Not thread safe.
+ */
+public class LongCounts {
+
+    /** Receives each key and its count. */
+    public interface Visitor {
+        void visit(long key, long count);
+    }
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] keys = new long[INITIAL_CAPACITY];
+    // 0 marks an empty slot; a key that is present has been counted at least once
+    private long[] counts = new long[INITIAL_CAPACITY];
+    private int size;
+
+    /** Number of distinct keys. */
+    public int size() {
+        return size;
+    }
+
+    public void increment(long key) {
+        add(key, 1);
+    }
+
+    /** Adds to the key's count; n must be positive. */
+    public void add(long key, long n) {
+        int mask = keys.length - 1;
+        int slot = slot(key, mask);
+        while (counts[slot] != 0) {
+            if (keys[slot] == key) {
+                counts[slot] += n;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        counts[slot] = n;
+        if (++size * 2 > keys.length) {
+            grow();
+        }
+    }
+
+    /** The key's count, 0 if it was never counted. */
+    public long get(long key) {
+        int mask = keys.length - 1;
+        for (int slot = slot(key, mask); counts[slot] != 0; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return counts[slot];
+            }
+        }
+        return 0;
+    }
+
+    /** Adds every count in the other table to this one and returns this. */
+    public LongCounts addAll(LongCounts other) {
+        for (int slot = 0; slot < other.keys.length; slot++) {
+            if (other.counts[slot] != 0) {
+                add(other.keys[slot], other.counts[slot]);
+            }
+        }
+        return this;
+    }
+
+    /** Visits every key, in no particular order. */
+    public void forEach(Visitor visitor) {
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (counts[slot] != 0) {
+                visitor.visit(keys[slot], counts[slot]);
+            }
+        }
+    }
+
+    /** The keys, sorted. */
+    public long[] sortedKeys() {
+        long[] sorted = new long[size];
+        int next = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (counts[slot] != 0) {
+                sorted[next++] = keys[slot];
+            }
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldCounts = counts;
+        keys = new long[oldKeys.length * 2];
+        counts = new long[oldKeys.length * 2];
+        size = 0;
+        for (int slot = 0; slot < oldKeys.length; slot++) {
+            if (oldCounts[slot] != 0) {
+                add(oldKeys[slot], oldCounts[slot]);
+            }
+        }
+    }
+
+    // Fibonacci hashing spreads sequential keys, such as symbol IDs and window starts
+    private static int slot(long key, int mask) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+}
@@ -0,0 +1,56 @@
+package register2;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps stored messages in memory only; they are gone when the process
+ * exits. For trying the app out without touching any files, and as the
+ * baseline the other backends are measured against.
+ */
+public class MemoryMessageStore implements MessageStore {
+
+    private final Map<String, Message> messages = new LinkedHashMap<>();
+    private boolean written;
+
+    @Override
+    public String name() {
+        return "memory";
+    }
+
+    @Override
+    public synchronized List<Message> load() {
+        return written ? new ArrayList<>(messages.values()) : null;
+    }
+
+    @Override
+    public synchronized boolean store(List<Message> batch) {
+        for (Message msg : batch) {
+            messages.remove(msg.getMessageID());
+            messages.put(msg.getMessageID(), msg);
+        }
+        written = true;
+        return false;
+    }
+
+    @Override
+    public synchronized boolean remove(String messageID) {
+        messages.remove(messageID);
+        written = true;
+        return false;
+    }
+
+    @Override
+    public synchronized long replaceAll(List<Message> all) {
+        messages.clear();
+        store(all);
+        return 0;
+    }
+
+    @Override
+    public long bytesRead() {
+        return 0;
+    }
+}
@@ -1,45 +1,79 @@
 package register2;
 
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
-
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.lang.reflect.Type;
 import java.util.*;
 
+import userdatastore.SymbolTable;
+
 public class Message {
 
     private String sender;
     private String recipient;
     private String content;
-    private String messageID;
+    // 0 until the message is given an ID; see getMessageID()
+    private int messageID;
+    private long timestamp;
+
+    // IDs in the shared SymbolTable, set by internSymbols()
+    private transient int senderSymbol;
+    private transient int recipientSymbol;
+    // Persisted with the message by MessageJson, so a restart knows it was sent
+    private transient boolean sent;
 
     private static int totalMessagesSent = 0;
 
     private static List<Message> sentMessages = new ArrayList<>();
-    private static List<Message> disregardedMessages = new ArrayList<>();
+    // Every message ever disregarded, in columns since it only grows
+    private static final MessageColumns disregardedMessages = new MessageColumns();
     private static List<Message> storedMessages = new ArrayList<>();
-    private static List<String> messageHashes = new ArrayList<>();
+    // Hashes of bodies held by at least one stored message, or still being composed
+    private static Set<String> messageHashes = new LinkedHashSet<>();
     private static List<String> messageIDs = new ArrayList<>();
 
     private static Map<String, Message> messageRegistry = new HashMap<>();
+    // Sent messages partitioned by recipient for searches and reports. The
+    // shards lock themselves; volatile so unlocked searches see the latest.
+    private static volatile ShardedMessageStore sentShards = new ShardedMessageStore(ShardedMessageStore.defaultShardCount());
     private static Queue<Integer> availableIDs = new LinkedList<>();
+    // One copy of each distinct body across stored messages
+    private static final ContentStore contents = new ContentStore();
+    // What readers see; replaced after every change, see publishSnapshot()
+    private static volatile MessageSnapshot snapshot = MessageSnapshot.EMPTY;
+    // Where stored messages are kept between runs, chosen by -Dquickchat.store
+    private static final MessageStore store = MessageStore.fromProperties();
+    // The pool hands out IDs 1 to 10, so their Strings are made once
+    private static final String[] ID_NAMES = new String[11];
 
     static {
+        for (int i = 1; i < ID_NAMES.length; i++) {
+            ID_NAMES[i] = Integer.toString(i);
+        }
         for (int i = 1; i <= 10; i++) {
             availableIDs.offer(i);
         }
-        loadStoredMessagesFromJSON();
+        MessageLoader.start();
     }
 
     public Message(String sender, String recipient, String content) {
+        MessageLoader.awaitReady();
+        this.sender = sender;
+        this.recipient = recipient;
+        internSymbols();
+        this.content = content;
+        this.timestamp = System.currentTimeMillis();
+        MessageReplication.awaitAcks(allocateID(this));
+    }
+
+    // Takes an ID from the pool and registers the message under it. Under the
+    // same lock as the mutators, since it can disregard the oldest message;
+    // returns that disregard's replication sequence number, or 0.
+    private static synchronized long allocateID(Message msg) {
+        long seq = 0;
         if (availableIDs.isEmpty()) {
             // Automatically remove the oldest message to free up space
             if (!storedMessages.isEmpty()) {
                 Message oldest = storedMessages.get(0);
-                disregardMessage(oldest);
+                seq = applyDisregard(oldest);
             }
 
             // Still full? Prevent creation
@@ -48,20 +82,47 @@ public class Message {
             }
         }
 
+        msg.messageID = availableIDs.poll();
+        messageRegistry.put(msg.getMessageID(), msg);
+        messageIDs.add(msg.getMessageID());
+        messageHashes.add(msg.createMessageHash());
+        return seq;
+    }
+
+    /**
+     * Rebuilds a message from stored fields without allocating an ID or
+     * registering it, e.g. when reading messages back from a store.
+     */
+    Message(String sender, String recipient, String content, String messageID, long timestamp) {
         this.sender = sender;
         this.recipient = recipient;
+        internSymbols();
         this.content = content;
+        this.messageID = messageID == null ? 0 : Integer.parseInt(messageID);
+        this.timestamp = timestamp;
+    }
 
-        int nextID = availableIDs.poll();
-        this.messageID = String.valueOf(nextID);
+    /**
+     * For views that read their fields from elsewhere, such as the rows of a
+     * MessageColumns; they override every getter.
+     */
+    Message() {
+    }
 
-        messageRegistry.put(this.messageID, this);
-        messageIDs.add(this.messageID);
-        messageHashes.add(createMessageHash());
+    /**
+     * Swaps sender and recipient for the shared canonical strings and caches
+     * their symbol IDs.
+     */
+    private void internSymbols() {
+        SymbolTable symbols = SymbolTable.shared();
+        senderSymbol = sender == null ? SymbolTable.NOT_FOUND : symbols.intern(sender);
+        recipientSymbol = recipient == null ? SymbolTable.NOT_FOUND : symbols.intern(recipient);
+        sender = symbols.canonical(sender);
+        recipient = symbols.canonical(recipient);
     }
 
     public String createMessageHash() {
-        return Integer.toString(content.hashCode());
+        return Integer.toString(getContent().hashCode());
     }
 
     public static boolean checkRecipientCell(String cellNumber) {
@@ -73,142 +134,610 @@ public class Message {
     }
 
     public static void sendMessage(Message msg) {
+        MessageLoader.awaitReady();
+        MessageReplication.awaitAcks(applySend(msg));
+    }
+
+    // The apply methods change state under the lock and return the sequence
+    // number of their last replicated change. The public entry points wait
+    // for follower acks on it only after the lock is released, so a slow
+    // follower never stalls other readers and writers.
+    private static synchronized long applySend(Message msg) {
+        msg.sent = true;
         sentMessages.add(msg);
+        sentShards.add(msg);
         storedMessages.add(msg);
+        retainContent(msg);
         totalMessagesSent++;
-        saveStoredMessagesToJSON();
+        RecipientIndex.recordSend(msg);
+        publishSnapshot();
+        checkpointStore(msg);
+        long seq = MessageReplication.record(MessageReplication.Op.SEND, MessageJson.wireGson().toJson(msg, Message.class));
+        MessageEventBus.shared().publish(MessageEventBus.Type.SENT, msg);
+        return seq;
+    }
+
+    /**
+     * Sends one body to many recipients as a single operation. Every
+     * recipient is checked before anything is sent, the IDs are taken in one
+     * go, the whole batch is logged with one write and the messages are added
+     * to the recipient shards in parallel. Invalid and repeated recipients
+     * are skipped; the messages actually sent are returned.
+     */
+    public static List<Message> broadcast(String sender, Collection<String> recipients, String content) {
+        MessageLoader.awaitReady();
+        List<Message> batch = new ArrayList<>();
+        MessageReplication.awaitAcks(applyBroadcast(sender, recipients, content, batch));
+        return batch;
+    }
+
+    // Fills batch with the messages sent
+    private static synchronized long applyBroadcast(String sender, Collection<String> recipients, String content,
+            List<Message> batch) {
+        if (!checkMessageContentLength(content)) {
+            throw new IllegalArgumentException("Please enter a message of less than 250 characters.");
+        }
+        List<String> valid = new ArrayList<>();
+        for (String recipient : new LinkedHashSet<>(recipients)) {
+            if (checkRecipientCell(recipient)) {
+                valid.add(recipient);
+            }
+        }
+        if (valid.isEmpty()) {
+            return 0;
+        }
+        if (valid.size() > 10) {
+            throw new IllegalStateException("Max 10 messages allowed. A broadcast can reach at most 10 recipients.");
+        }
+        // Free IDs the same way the constructor does, oldest stored first
+        while (availableIDs.size() < valid.size() && !storedMessages.isEmpty()) {
+            disregardMessage(storedMessages.get(0));
+        }
+        if (availableIDs.size() < valid.size()) {
+            throw new IllegalStateException("Max 10 messages allowed. Disregard or delete one to proceed.");
+        }
+
+        long now = System.currentTimeMillis();
+        for (String recipient : valid) {
+            Message msg = new Message(sender, recipient, content, String.valueOf(availableIDs.poll()), now);
+            register(msg);
+            batch.add(msg);
+        }
+        return applySends(batch);
+    }
+
+    /**
+     * Batch form of sendMessage for messages that already have IDs: one
+     * delta log write for the lot and the shards filled in parallel. With
+     * sync replication it waits once, for the last message's ack.
+     */
+    public static void sendMessages(List<Message> batch) {
+        MessageLoader.awaitReady();
+        MessageReplication.awaitAcks(applySends(batch));
+    }
+
+    private static synchronized long applySends(List<Message> batch) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        sentMessages.addAll(batch);
+        sentShards.addAll(batch);
+        storedMessages.addAll(batch);
+        for (Message msg : batch) {
+            msg.sent = true;
+            retainContent(msg);
+            RecipientIndex.recordSend(msg);
+        }
+        totalMessagesSent += batch.size();
+        publishSnapshot();
+        checkpointStore(batch);
+        long seq = 0;
+        for (Message msg : batch) {
+            seq = MessageReplication.record(MessageReplication.Op.SEND, MessageJson.wireGson().toJson(msg, Message.class));
+            MessageEventBus.shared().publish(MessageEventBus.Type.SENT, msg);
+        }
+        return seq;
+    }
+
+    /** Broadcasts to the members of a group saved in RecipientGroups. */
+    public static List<Message> broadcastToGroup(String sender, String group, String content) {
+        List<String> members = RecipientGroups.get(group);
+        if (members == null) {
+            throw new IllegalArgumentException("No recipient group called " + group);
+        }
+        return broadcast(sender, members, content);
+    }
+
+    /** Stored messages that have not been sent, oldest first. */
+    static List<Message> getUnsentStoredMessages() {
+        MessageLoader.awaitReady();
+        synchronized (Message.class) {
+            Set<Message> sent = Collections.newSetFromMap(new IdentityHashMap<>());
+            sent.addAll(sentMessages);
+            List<Message> unsent = new ArrayList<>();
+            for (Message m : storedMessages) {
+                if (!sent.contains(m)) {
+                    unsent.add(m);
+                }
+            }
+            return unsent;
+        }
+    }
+
+    /**
+     * Marks stored messages as sent without storing them again; the outbox
+     * log records it until the next full save writes the flag. Messages no
+     * longer stored, or already sent, are left out. Returns the ones promoted.
+     */
+    static List<Message> promoteStored(List<Message> batch) {
+        MessageLoader.awaitReady();
+        List<Message> promoted = new ArrayList<>();
+        MessageReplication.awaitAcks(applyPromote(batch, promoted));
+        return promoted;
+    }
+
+    // Fills promoted with the messages marked sent
+    private static synchronized long applyPromote(List<Message> batch, List<Message> promoted) {
+        promoted.addAll(markSent(batch, sentShards));
+        publishSnapshot();
+        long seq = 0;
+        for (Message msg : promoted) {
+            RecipientIndex.recordSend(msg);
+            seq = MessageReplication.record(MessageReplication.Op.PROMOTE, msg.getMessageID());
+            MessageEventBus.shared().publish(MessageEventBus.Type.SENT, msg);
+        }
+        return seq;
+    }
+
+    private static List<Message> markSent(List<Message> batch, ShardedMessageStore shards) {
+        Set<String> sentIDs = new HashSet<>();
+        for (Message m : sentMessages) {
+            sentIDs.add(m.getMessageID());
+        }
+        List<Message> promoted = new ArrayList<>();
+        for (Message msg : batch) {
+            if (messageRegistry.get(msg.getMessageID()) == msg && sentIDs.add(msg.getMessageID())) {
+                msg.sent = true;
+                promoted.add(msg);
+            }
+        }
+        sentMessages.addAll(promoted);
+        shards.addAll(promoted);
+        totalMessagesSent += promoted.size();
+        return promoted;
     }
 
     public static void storeMessage(Message msg) {
+        MessageLoader.awaitReady();
+        MessageReplication.awaitAcks(applyStore(msg));
+    }
+
+    private static synchronized long applyStore(Message msg) {
         storedMessages.add(msg);
+        retainContent(msg);
         messageRegistry.put(msg.getMessageID(), msg);
         if (!messageIDs.contains(msg.getMessageID())) {
             messageIDs.add(msg.getMessageID());
         }
-        if (!messageHashes.contains(msg.createMessageHash())) {
-            messageHashes.add(msg.createMessageHash());
-        }
-        saveStoredMessagesToJSON();
+        publishSnapshot();
+        checkpointStore(msg);
+        long seq = MessageReplication.record(MessageReplication.Op.STORE, MessageJson.wireGson().toJson(msg, Message.class));
+        MessageEventBus.shared().publish(MessageEventBus.Type.STORED, msg);
+        return seq;
     }
 
     public static void disregardMessage(Message msg) {
-        disregardedMessages.add(msg);
+        MessageLoader.awaitReady();
+        MessageReplication.awaitAcks(applyDisregard(msg));
+    }
+
+    private static synchronized long applyDisregard(Message msg) {
+        disregardedMessages.append(msg);
         sentMessages.remove(msg);
-        storedMessages.remove(msg);
+        sentShards.remove(msg);
+        releaseContent(msg, storedMessages.remove(msg));
         messageRegistry.remove(msg.getMessageID());
-        messageHashes.remove(msg.createMessageHash());
         messageIDs.remove(msg.getMessageID());
 
-        availableIDs.offer(Integer.parseInt(msg.getMessageID()));
-        saveStoredMessagesToJSON();
+        availableIDs.offer(msg.getId());
+        publishSnapshot();
+        checkpointRemove(msg.getMessageID());
+        long seq = MessageReplication.record(MessageReplication.Op.DISREGARD, msg.getMessageID());
+        MessageEventBus.shared().publish(MessageEventBus.Type.DISREGARDED, msg);
+        return seq;
     }
 
     public static boolean deleteMessageByHash(String hash) {
+        MessageLoader.awaitReady();
+        long seq = applyDelete(hash);
+        MessageReplication.awaitAcks(seq);
+        return seq >= 0;
+    }
+
+    // Returns -1 if no sent message has the hash
+    private static synchronized long applyDelete(String hash) {
+        MessageEvents.DeleteEvent event = new MessageEvents.DeleteEvent();
+        event.begin();
+        event.hash = hash;
         for (Message msg : new ArrayList<>(sentMessages)) {
+            event.scanned++;
             if (msg.createMessageHash().equals(hash)) {
                 sentMessages.remove(msg);
-                storedMessages.remove(msg);
+                sentShards.remove(msg);
+                releaseContent(msg, storedMessages.remove(msg));
                 messageRegistry.remove(msg.getMessageID());
-                messageHashes.remove(hash);
                 messageIDs.remove(msg.getMessageID());
-                availableIDs.offer(Integer.parseInt(msg.getMessageID()));
-                saveStoredMessagesToJSON();
-                return true;
+                availableIDs.offer(msg.getId());
+                publishSnapshot();
+                checkpointRemove(msg.getMessageID());
+                long seq = MessageReplication.record(MessageReplication.Op.DELETE, hash);
+                MessageEventBus.shared().publish(MessageEventBus.Type.DELETED, msg);
+                event.deleted = true;
+                event.commit();
+                return seq;
             }
         }
-        return false;
+        event.commit();
+        return -1;
     }
 
-    public static Message getMessageByID(String id) {
-        return messageRegistry.get(id);
+    // Adds a message that already has an ID (replicated or recovered) to the ID indexes
+    private static void register(Message msg) {
+        messageRegistry.put(msg.getMessageID(), msg);
+        if (!messageIDs.contains(msg.getMessageID())) {
+            messageIDs.add(msg.getMessageID());
+        }
+        messageHashes.add(msg.createMessageHash());
+        availableIDs.remove(msg.getId());
     }
 
-    public static List<Message> searchMessagesByRecipient(String recipient) {
-        List<Message> results = new ArrayList<>();
-        for (Message m : sentMessages) {
-            if (m.getRecipient().equalsIgnoreCase(recipient)) {
-                results.add(m);
+    // Points a newly stored message at the shared copy of its body
+    private static void retainContent(Message msg) {
+        msg.content = contents.acquire(msg.content);
+        messageHashes.add(msg.createMessageHash());
+    }
+
+    // Publishes the lists as they are now; called under the lock after each change
+    private static void publishSnapshot() {
+        snapshot = new MessageSnapshot(snapshot.getVersion() + 1,
+                Collections.unmodifiableList(new ArrayList<>(sentMessages)),
+                Collections.unmodifiableList(new ArrayList<>(storedMessages)),
+                disregardedMessages.rows(), totalMessagesSent);
+    }
+
+    // Drops the message's reference to its body; the hash goes once nothing
+    // stored (or being composed with an ID) still has that body
+    private static void releaseContent(Message msg, boolean wasStored) {
+        boolean last = wasStored ? contents.release(msg.content) : contents.references(msg.content) == 0;
+        if (last) {
+            messageHashes.remove(msg.createMessageHash());
+        }
+    }
+
+    /**
+     * State a replication leader ships to a follower that has to start over.
+     * The caller waits for the history before taking the lock.
+     */
+    static synchronized String replicaSnapshot() {
+        MessageReplication.State state = new MessageReplication.State();
+        state.sent = new ArrayList<>(sentMessages);
+        state.stored = new ArrayList<>(storedMessages);
+        state.totalMessagesSent = totalMessagesSent;
+        return MessageJson.wireGson().toJson(state);
+    }
+
+    /** Replaces this follower's state with the leader's snapshot. */
+    static void installReplicaSnapshot(String json) {
+        MessageLoader.awaitReady();
+        install(MessageJson.wireGson().fromJson(json, MessageReplication.State.class));
+    }
+
+    private static synchronized void install(MessageReplication.State state) {
+        sentMessages.clear();
+        storedMessages.clear();
+        messageRegistry.clear();
+        messageIDs.clear();
+        messageHashes.clear();
+        contents.clear();
+        availableIDs.clear();
+        for (int i = 1; i <= 10; i++) {
+            availableIDs.offer(i);
+        }
+
+        // Sent messages are also stored; keep one instance per ID like the leader does.
+        // The shards are filled before they are published, since searches don't lock.
+        ShardedMessageStore shards = new ShardedMessageStore(sentShards.getShardCount());
+        Map<String, Message> byID = new HashMap<>();
+        for (Message m : state.stored) {
+            byID.put(m.getMessageID(), m);
+            storedMessages.add(m);
+            retainContent(m);
+            register(m);
+        }
+        for (Message m : state.sent) {
+            Message same = byID.getOrDefault(m.getMessageID(), m);
+            same.sent = true;
+            sentMessages.add(same);
+            shards.add(same);
+            register(same);
+        }
+        sentShards = shards;
+        totalMessagesSent = state.totalMessagesSent;
+        publishSnapshot();
+        saveStoredMessagesToJSON();
+    }
+
+    /** Applies one change shipped by the replication leader. */
+    static void applyReplicated(MessageReplication.Op op, String payload) {
+        MessageLoader.awaitReady();
+        apply(op, payload);
+    }
+
+    private static synchronized void apply(MessageReplication.Op op, String payload) {
+        switch (op) {
+            case SEND: {
+                Message msg = MessageJson.wireGson().fromJson(payload, Message.class);
+                register(msg);
+                applySend(msg);
+                break;
+            }
+            case STORE: {
+                Message msg = MessageJson.wireGson().fromJson(payload, Message.class);
+                register(msg);
+                applyStore(msg);
+                break;
+            }
+            case DISREGARD: {
+                Message msg = messageRegistry.get(payload);
+                if (msg != null) {
+                    applyDisregard(msg);
+                }
+                break;
             }
+            case DELETE:
+                applyDelete(payload);
+                break;
+            case PROMOTE: {
+                Message msg = messageRegistry.get(payload);
+                if (msg != null) {
+                    applyPromote(Collections.singletonList(msg), new ArrayList<>());
+                }
+                break;
+            }
+        }
+    }
+
+    // Readers that aren't served from the snapshot wait for the history
+    // before taking the lock, since the loader needs the lock to finish it
+    public static Message getMessageByID(String id) {
+        MessageLoader.awaitReady();
+        synchronized (Message.class) {
+            return messageRegistry.get(id);
         }
+    }
+
+    public static List<Message> searchMessagesByRecipient(String recipient) {
+        MessageLoader.awaitReady();
+        MessageEvents.SearchEvent event = new MessageEvents.SearchEvent();
+        event.begin();
+        ShardedMessageStore shards = sentShards;
+        List<Message> results = shards.searchByRecipient(recipient);
+        event.recipient = recipient;
+        event.scanned = shards.shardSize(recipient);
+        event.matches = results.size();
+        event.commit();
         return results;
     }
 
     public static Message getLongestMessage() {
-        Message longest = null;
-        for (Message m : sentMessages) {
-            if (longest == null || m.getContent().length() > longest.getContent().length()) {
-                longest = m;
+        MessageLoader.awaitReady();
+        return sentShards.getLongestMessage();
+    }
+
+    // Changes go to the store one by one; the full list is written when the
+    // store asks for it or a change can't be written on its own.
+    private static void checkpointStore(Message msg) {
+        checkpointStore(Collections.singletonList(msg));
+    }
+
+    private static void checkpointStore(List<Message> batch) {
+        try {
+            if (!store.store(batch)) {
+                return;
             }
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        return longest;
+        saveStoredMessagesToJSON();
     }
 
-    public static void saveStoredMessagesToJSON() {
-        Gson gson = new Gson();
-        try (FileWriter writer = new FileWriter("storedMessages.json")) {
-            gson.toJson(storedMessages, writer);
+    private static void checkpointRemove(String messageID) {
+        try {
+            if (!store.remove(messageID)) {
+                return;
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
+        saveStoredMessagesToJSON();
+    }
+
+    public static void saveStoredMessagesToJSON() {
+        MessageLoader.awaitReady();
+        synchronized (Message.class) {
+            MessageEvents.SaveEvent event = new MessageEvents.SaveEvent();
+            event.begin();
+            event.store = store.name();
+            MessageJson.trainIfNeeded(Message::trainingSamples);
+            try {
+                event.bytesWritten = store.replaceAll(storedMessages);
+                event.records = storedMessages.size();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            event.commit();
+        }
+    }
+
+    /**
+     * Trains the compression dictionary from the message history now,
+     * however few bodies there are, and saves so the stored messages are
+     * rewritten compressed. Does nothing, and returns false, unless
+     * -Dquickchat.compress=true and no dictionary exists yet.
+     */
+    public static boolean trainCompressionDictionary() {
+        MessageLoader.awaitReady();
+        synchronized (Message.class) {
+            if (!MessageJson.train(Message::trainingSamples)) {
+                return false;
+            }
+            saveStoredMessagesToJSON();
+            return true;
+        }
+    }
+
+    // Newest bodies first: stored (which includes sent) then the disregarded
+    // history, which keeps growing while the 10-ID pool caps the others.
+    // Called under the lock; the history's bodies are decoded straight from
+    // its columns.
+    private static List<String> trainingSamples() {
+        List<String> samples = new ArrayList<>();
+        for (int i = storedMessages.size() - 1; i >= 0 && samples.size() < MessageJson.MAX_TRAINING_SAMPLES; i--) {
+            samples.add(storedMessages.get(i).getContent());
+        }
+        MessageColumns.Rows disregarded = disregardedMessages.rows();
+        for (int i = disregarded.size() - 1; i >= 0 && samples.size() < MessageJson.MAX_TRAINING_SAMPLES; i--) {
+            samples.add(disregarded.getContent(i));
+        }
+        return samples;
     }
 
     public static void loadStoredMessagesFromJSON() {
-        Gson gson = new Gson();
-        try (FileReader reader = new FileReader("storedMessages.json")) {
-            Type listType = new TypeToken<List<Message>>() {}.getType();
-            List<Message> loaded = gson.fromJson(reader, listType);
-            if (loaded != null) {
-                storedMessages.clear();
-                messageRegistry.clear();
-                messageIDs.clear();
-                messageHashes.clear();
-                availableIDs.clear();
-
-                for (int i = 1; i <= 10; i++) {
-                    availableIDs.offer(i);
-                }
+        MessageLoader.awaitReady();
+        loadHistory();
+    }
 
-                storedMessages.addAll(loaded);
+    // Restoring the outbox log needs the outbox lock, and Outbox.flush holds
+    // that lock while it promotes messages, so take it before the Message lock
+    static void loadHistory() {
+        synchronized (Outbox.class) {
+            synchronized (Message.class) {
+                replaceHistory();
+            }
+        }
+    }
 
-                for (Message m : loaded) {
-                    messageRegistry.put(m.getMessageID(), m);
-                    messageIDs.add(m.getMessageID());
-                    messageHashes.add(m.createMessageHash());
-                    int assignedID = Integer.parseInt(m.getMessageID());
-                    availableIDs.remove(assignedID);
-                }
+    // Replaces the sent and stored state with what the store holds
+    private static void replaceHistory() {
+        MessageEvents.LoadEvent event = new MessageEvents.LoadEvent();
+        event.begin();
+        event.store = store.name();
+        MessageLoader.Chunk loaded = null;
+        try {
+            List<Message> recovered = store.load();
+            event.bytesRead = store.bytesRead();
+            if (recovered == null) {
+                System.out.println("No stored messages found yet.");
+            } else {
+                loaded = MessageLoader.index(recovered);
             }
         } catch (IOException e) {
-            System.out.println("No stored messages found yet.");
+            System.out.println("Could not read stored messages: " + e.getMessage());
         }
+
+        if (loaded != null) {
+            sentMessages.clear();
+            totalMessagesSent = 0;
+            storedMessages.clear();
+            messageRegistry.clear();
+            messageIDs.clear();
+            messageHashes.clear();
+            contents.clear();
+            availableIDs.clear();
+
+            for (int i = 1; i <= 10; i++) {
+                availableIDs.offer(i);
+            }
+
+            storedMessages.addAll(loaded.messages);
+            for (Message m : storedMessages) {
+                m.content = contents.acquire(m.content);
+            }
+            messageRegistry.putAll(loaded.registry);
+            messageIDs.addAll(loaded.ids);
+            messageHashes.addAll(loaded.hashes);
+            for (String id : loaded.ids) {
+                availableIDs.remove(Integer.parseInt(id));
+            }
+            event.records = loaded.messages.size();
+
+            // Direct sends, broadcasts and scheduled sends are stored flagged
+            // as sent; outbox flushes are in the outbox log until the next save
+            Set<Message> flushed = Collections.newSetFromMap(new IdentityHashMap<>());
+            flushed.addAll(Outbox.restore(storedMessages));
+            List<Message> alreadySent = new ArrayList<>();
+            for (Message m : storedMessages) {
+                if (m.sent || flushed.contains(m)) {
+                    alreadySent.add(m);
+                }
+            }
+            // Filled before it is published, since searches don't lock
+            ShardedMessageStore shards = new ShardedMessageStore(sentShards.getShardCount());
+            markSent(alreadySent, shards);
+            sentShards = shards;
+        }
+
+        // Scheduled sends keep their IDs across restarts
+        for (Message m : MessageScheduler.shared().restore(messageRegistry)) {
+            register(m);
+        }
+        publishSnapshot();
+        event.commit();
+    }
+
+    /**
+     * Point-in-time view of the sent, stored and disregarded lists. Taking
+     * one is a single volatile read; it never changes afterwards and never
+     * blocks writers.
+     */
+    public static MessageSnapshot snapshot() {
+        MessageLoader.awaitReady();
+        return snapshot;
     }
 
     public static String getFullReport() {
+        MessageSnapshot view = snapshot();
+        MessageEvents.ReportEvent event = new MessageEvents.ReportEvent();
+        event.begin();
         StringBuilder report = new StringBuilder();
         report.append("==== Message Report ====\n");
-        report.append("Total Messages Sent: ").append(totalMessagesSent).append("\n\n");
+        report.append("Total Messages Sent: ").append(view.getTotalMessagesSent()).append("\n\n");
 
         report.append("--- Sent Messages ---\n");
-        for (Message m : sentMessages) {
+        for (Message m : view.getSentMessages()) {
             report.append(m.toString()).append("\n\n");
         }
 
         report.append("--- Disregarded Messages ---\n");
-        for (Message m : disregardedMessages) {
+        for (Message m : view.getDisregardedMessages()) {
             report.append(m.toString()).append("\n\n");
         }
 
         report.append("--- Stored Messages ---\n");
-        for (Message m : storedMessages) {
+        for (Message m : view.getStoredMessages()) {
             report.append(m.toString()).append("\n\n");
         }
 
+        event.records = view.getSentMessages().size() + view.getDisregardedMessages().size()
+                + view.getStoredMessages().size();
+        event.chars = report.length();
+        event.commit();
         return report.toString();
     }
 
     public static Set<String> getSenderRecipientList() {
-        Set<String> pairs = new HashSet<>();
-        for (Message m : sentMessages) {
+        Set<String> pairs = new LinkedHashSet<>();
+        for (Message m : snapshot().getSentMessages()) {
             pairs.add("From: " + m.getSender() + " -> To: " + m.getRecipient());
         }
         return pairs;
@@ -222,12 +751,38 @@ public class Message {
         }
     }
 
-    public static List<Message> getSentMessages() { return sentMessages; }
-    public static List<Message> getDisregardedMessages() { return disregardedMessages; }
-    public static List<Message> getStoredMessages() { return storedMessages; }
-    public static List<String> getMessageHashes() { return messageHashes; }
-    public static List<String> getMessageIDs() { return messageIDs; }
-    public static int returnTotalMessages() { return totalMessagesSent; }
+    // Read-only and point-in-time; see snapshot()
+    public static List<Message> getSentMessages() { return snapshot().getSentMessages(); }
+    public static List<Message> getDisregardedMessages() { return snapshot().getDisregardedMessages(); }
+    public static List<Message> getStoredMessages() { return snapshot().getStoredMessages(); }
+    public static List<String> getMessageHashes() {
+        MessageLoader.awaitReady();
+        synchronized (Message.class) {
+            return new ArrayList<>(messageHashes);
+        }
+    }
+    public static int getDistinctContentCount() {
+        MessageLoader.awaitReady();
+        synchronized (Message.class) {
+            return contents.size();
+        }
+    }
+    public static List<String> getMessageIDs() {
+        MessageLoader.awaitReady();
+        synchronized (Message.class) {
+            return Collections.unmodifiableList(new ArrayList<>(messageIDs));
+        }
+    }
+    public static int returnTotalMessages() { return snapshot().getTotalMessagesSent(); }
+
+    /** Whether the message has been sent, as opposed to only stored. */
+    boolean isSent() {
+        return sent;
+    }
+
+    void setSent(boolean sent) {
+        this.sent = sent;
+    }
 
     public String getSender() {
         return sender;
@@ -242,15 +797,39 @@ public class Message {
     }
 
     public String getMessageID() {
+        return idName(getId());
+    }
+
+    // The message ID as a number, 0 if it has none yet
+    int getId() {
         return messageID;
     }
 
+    static String idName(int id) {
+        if (id > 0 && id < ID_NAMES.length) {
+            return ID_NAMES[id];
+        }
+        return id == 0 ? null : Integer.toString(id);
+    }
+
+    public int getSenderSymbol() {
+        return senderSymbol;
+    }
+
+    public int getRecipientSymbol() {
+        return recipientSymbol;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
     @Override
     public String toString() {
-        return "Message ID: " + messageID +
-                "\nFrom: " + sender +
-                "\nTo: " + recipient +
-                "\nMessage: " + content +
+        return "Message ID: " + getMessageID() +
+                "\nFrom: " + getSender() +
+                "\nTo: " + getRecipient() +
+                "\nMessage: " + getContent() +
                 "\nHash: " + createMessageHash();
     }
 }
\ No newline at end of file
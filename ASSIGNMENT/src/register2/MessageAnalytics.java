@@ -0,0 +1,171 @@
+package register2;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntToLongFunction;
+
+/**
+ * Aggregate reports over sent messages. Queries run against a
+ * {@link MessageColumns} snapshot: senders are SymbolTable IDs, recipients
+ * packed longs and timestamps a long[]. Each query splits the rows in
+ * halves on a fork-join pool, the common one unless another is given, into
+ * a few leaves per pool thread; every leaf counts its rows into a
+ * {@link LongCounts} sized by the keys it actually sees, and the leaves are
+ * merged pairwise on the way back up. Only
+ * the keys of the result are decoded. {@link AnalyticsScaling} times the
+ * queries against the number of cores.
+ */
+public class MessageAnalytics {
+
+    // Fewest rows one leaf counts by itself; below this, splitting costs more than it saves
+    private static final int MIN_LEAF_ROWS = 1 << 14;
+    // Leaves per pool thread, enough to even out uneven ones; more only adds merging
+    private static final int LEAVES_PER_THREAD = 4;
+
+    private final MessageColumns.Rows rows;
+    private final ForkJoinPool pool;
+
+    private MessageAnalytics(MessageColumns.Rows rows, ForkJoinPool pool) {
+        this.rows = rows;
+        this.pool = pool;
+    }
+
+    /** Takes a snapshot of the messages sent so far. */
+    public static MessageAnalytics snapshot() {
+        return of(MessageColumns.fromMessages(Message.snapshot().getSentMessages()).rows());
+    }
+
+    /** Runs queries over the given rows, e.g. synthetic data or the disregarded history. */
+    public static MessageAnalytics of(MessageColumns.Rows rows) {
+        return of(rows, ForkJoinPool.commonPool());
+    }
+
+    /** Runs queries over the given rows on this pool, e.g. to use a fixed number of cores. */
+    public static MessageAnalytics of(MessageColumns.Rows rows, ForkJoinPool pool) {
+        return new MessageAnalytics(rows, pool);
+    }
+
+    public int size() {
+        return rows.size();
+    }
+
+    /** Number of messages sent by each user. */
+    public Map<String, Long> messagesPerUser() {
+        Map<String, Long> result = new HashMap<>();
+        countBy(rows::getSenderCode).forEach((code, count) -> result.put(rows.senderName((int) code), count));
+        return result;
+    }
+
+    /** The n recipients with the most messages, busiest first; ties go to the lower number. */
+    public Map<String, Long> topRecipients(int n) {
+        // {recipient, count}, busiest first
+        Comparator<long[]> order = (a, b) -> a[1] != b[1] ? Long.compare(b[1], a[1]) : Long.compare(a[0], b[0]);
+        // The n busiest so far, the one to drop next at the head
+        PriorityQueue<long[]> busiest = new PriorityQueue<>(order.reversed());
+        countBy(rows::getPackedRecipient).forEach((recipient, count) -> {
+            long[] entry = {recipient, count};
+            if (busiest.size() < n) {
+                busiest.add(entry);
+            } else if (n > 0 && order.compare(entry, busiest.peek()) < 0) {
+                busiest.poll();
+                busiest.add(entry);
+            }
+        });
+        List<long[]> ordered = new ArrayList<>(busiest);
+        ordered.sort(order);
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (long[] entry : ordered) {
+            result.put(rows.recipientName(entry[0]), entry[1]);
+        }
+        return result;
+    }
+
+    /**
+     * Message length at each requested percentile (0-100), nearest rank.
+     * Returns an empty array when there are no messages. Lengths are counted
+     * rather than sorted, since there are only as many as the longest message.
+     */
+    public int[] lengthPercentiles(double... percentiles) {
+        for (double p : percentiles) {
+            if (p < 0 || p > 100) {
+                throw new IllegalArgumentException("Percentile must be between 0 and 100: " + p);
+            }
+        }
+        if (rows.size() == 0) {
+            return new int[0];
+        }
+        LongCounts counts = countBy(rows::getContentLength);
+        long[] lengths = counts.sortedKeys();
+        int[] result = new int[percentiles.length];
+        for (int i = 0; i < percentiles.length; i++) {
+            long rank = Math.max(1, (long) Math.ceil(percentiles[i] / 100.0 * rows.size()));
+            long seen = 0;
+            for (long length : lengths) {
+                seen += counts.get(length);
+                if (seen >= rank) {
+                    result[i] = (int) length;
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Message counts per time window, keyed by window start (epoch millis), in time order. */
+    public Map<Long, Long> activity(long windowMillis) {
+        if (windowMillis <= 0) {
+            throw new IllegalArgumentException("Window must be positive");
+        }
+        Map<Long, Long> result = new TreeMap<>();
+        countBy(i -> Math.floorDiv(rows.getTimestamp(i), windowMillis) * windowMillis).forEach(result::put);
+        return result;
+    }
+
+    private LongCounts countBy(IntToLongFunction key) {
+        int leafRows = Math.max(MIN_LEAF_ROWS, rows.size() / (pool.getParallelism() * LEAVES_PER_THREAD));
+        return pool.invoke(new CountTask(key, leafRows, 0, rows.size()));
+    }
+
+    // Counts rows [from, to) by key, halving until a range is one leaf
+    private static final class CountTask extends RecursiveTask<LongCounts> {
+        private static final long serialVersionUID = 1L;
+
+        private final IntToLongFunction key;
+        private final int leafRows;
+        private final int from;
+        private final int to;
+
+        CountTask(IntToLongFunction key, int leafRows, int from, int to) {
+            this.key = key;
+            this.leafRows = leafRows;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected LongCounts compute() {
+            if (to - from <= leafRows) {
+                LongCounts counts = new LongCounts();
+                for (int i = from; i < to; i++) {
+                    counts.increment(key.applyAsLong(i));
+                }
+                return counts;
+            }
+            int mid = (from + to) >>> 1;
+            CountTask left = new CountTask(key, leafRows, from, mid);
+            left.fork();
+            LongCounts right = new CountTask(key, leafRows, mid, to).compute();
+            LongCounts leftCounts = left.join();
+            // Fold the smaller table into the larger
+            return leftCounts.size() >= right.size() ? leftCounts.addAll(right) : right.addAll(leftCounts);
+        }
+    }
+}
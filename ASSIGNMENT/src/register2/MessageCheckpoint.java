@@ -0,0 +1,576 @@
+package register2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Crash-safe persistence for stored messages in one directory, used by
+ * {@link FileMessageStore}.
+ *
+ * storedMessages.json is only ever replaced whole: the snapshot is written to
+ * a temp file, fsynced and renamed over the old one, so a crash leaves either
+ * the old or the new file. It stays a plain JSON array of messages. Its
+ * CRC32, length and generation number go in storedMessages.checksums, which
+ * lists the last few snapshots written and is replaced atomically before a
+ * new snapshot is renamed into place, so every snapshot on disk has an
+ * entry whenever a crash comes. Between snapshots each change is appended
+ * to storedMessages.delta as one line, "crc32 op payload", and fsynced; the
+ * log's first line names the generation it applies to.
+ *
+ * The previous generation is kept as storedMessages.json.prev, with the log
+ * that leads from it to the current snapshot as storedMessages.delta.prev.
+ * Recovery loads the current snapshot and replays its log up to the first
+ * line that is torn or fails its checksum. If the snapshot is missing or
+ * matches no entry in the checksum list, it is moved aside to
+ * storedMessages.json.damaged and recovery starts from the previous
+ * generation instead, replaying both logs, which ends at the same state. If that isn't possible either, because the
+ * previous snapshot is damaged too or its logs don't lead on from it, load
+ * fails rather than start from older or partial data. Ops are upserts and
+ * removes keyed by message ID, so replaying a log that a snapshot already
+ * covers gives the same state.
+ */
+public class MessageCheckpoint {
+
+    public static final String SNAPSHOT_EVERY_PROPERTY = "quickchat.snapshotEvery";
+
+    static final String SNAPSHOT_FILE = "storedMessages.json";
+    static final String DELTA_FILE = "storedMessages.delta";
+    static final String CHECKSUM_FILE = "storedMessages.checksums";
+    static final String PREVIOUS_SUFFIX = ".prev";
+    static final String DAMAGED_SUFFIX = ".damaged";
+
+    private static final char STORE = 'S';
+    private static final char REMOVE = 'R';
+    private static final char GENERATION = 'G';
+    private static final char CHECKSUM = 'C';
+    // The new snapshot, the current one and the previous one
+    private static final int CHECKSUMS_KEPT = 3;
+    // Logs written before generations were recorded apply to whatever snapshot is there
+    private static final long ANY_GENERATION = -1;
+
+    private final Path snapshotFile;
+    private final Path deltaFile;
+    private final Path previousSnapshotFile;
+    private final Path previousDeltaFile;
+    private final Path damagedSnapshotFile;
+    private final Path checksumFile;
+    private long generation = ANY_GENERATION;
+    private int deltasSinceSnapshot = 0;
+
+    MessageCheckpoint(Path dir) {
+        this.snapshotFile = dir.resolve(SNAPSHOT_FILE);
+        this.deltaFile = dir.resolve(DELTA_FILE);
+        this.previousSnapshotFile = dir.resolve(SNAPSHOT_FILE + PREVIOUS_SUFFIX);
+        this.previousDeltaFile = dir.resolve(DELTA_FILE + PREVIOUS_SUFFIX);
+        this.damagedSnapshotFile = dir.resolve(SNAPSHOT_FILE + DAMAGED_SUFFIX);
+        this.checksumFile = dir.resolve(CHECKSUM_FILE);
+    }
+
+    /** Number of delta records after which the next change triggers a snapshot. */
+    static int snapshotInterval() {
+        return Math.max(1, Integer.getInteger(SNAPSHOT_EVERY_PROPERTY, 100));
+    }
+
+    /** What {@link #recover} found: the messages, or null if nothing was ever stored, and the bytes read. */
+    static final class Recovery {
+        final List<Message> messages;
+        final long bytesRead;
+
+        Recovery(List<Message> messages, long bytesRead) {
+            this.messages = messages;
+            this.bytesRead = bytesRead;
+        }
+    }
+
+    // One entry in the checksum list: what a snapshot's bytes hash to, and its generation
+    private static final class Checksum {
+        final long crc;
+        final long length;
+        final long generation;
+
+        Checksum(long crc, long length, long generation) {
+            this.crc = crc;
+            this.length = length;
+            this.generation = generation;
+        }
+
+        static Checksum of(byte[] json, long generation) {
+            CRC32 crc = new CRC32();
+            crc.update(json);
+            return new Checksum(crc.getValue(), json.length, generation);
+        }
+    }
+
+    // A snapshot file that passed its checksum and parsed
+    private static final class Snapshot {
+        final List<Message> messages;
+        final long generation;
+        final long bytes;
+
+        Snapshot(List<Message> messages, long generation, long bytes) {
+            this.messages = messages;
+            this.generation = generation;
+            this.bytes = bytes;
+        }
+    }
+
+    // The valid prefix of a delta log, parsed
+    private static final class Delta {
+        long generation = ANY_GENERATION;
+        final List<Change> changes = new ArrayList<>();
+        final long length;
+        int validLength;
+
+        Delta(long length) {
+            this.length = length;
+        }
+    }
+
+    // One logged op: a message stored, or an ID removed
+    private static final class Change {
+        final Message stored;
+        final String removedID;
+
+        Change(Message stored, String removedID) {
+            this.stored = stored;
+            this.removedID = removedID;
+        }
+    }
+
+    /**
+     * Atomically replaces the snapshot and starts an empty delta log. The
+     * current snapshot and its log become the previous generation.
+     */
+    synchronized void writeSnapshot(byte[] json) throws IOException {
+        if (generation == ANY_GENERATION) {
+            generation = currentGeneration();
+        }
+        long next = generation + 1;
+        byte[] emptyLog = line(GENERATION, Long.toString(next)).getBytes(StandardCharsets.UTF_8);
+        Path temp = snapshotFile.resolveSibling(SNAPSHOT_FILE + ".tmp");
+        write(temp, json);
+        // Listed before it appears under either name, keeping the entries of
+        // the snapshots it rotates out
+        List<Checksum> checksums = readChecksums();
+        if (checksums.isEmpty()) {
+            vouchForUnlisted(checksums);
+        }
+        checksums.add(Checksum.of(json, next));
+        writeChecksums(checksums);
+
+        if (Files.exists(snapshotFile)) {
+            // Snapshot first: until the new one is in place, the previous
+            // generation plus whichever logs exist still add up to the state
+            move(snapshotFile, previousSnapshotFile);
+            if (Files.exists(deltaFile)) {
+                move(deltaFile, previousDeltaFile);
+            }
+        } else {
+            // First save, or the snapshot was found damaged: the old previous
+            // generation doesn't lead to this one, so the new snapshot is also
+            // the previous one
+            writeAtomically(previousSnapshotFile, json);
+            writeAtomically(previousDeltaFile, emptyLog);
+        }
+        move(temp, snapshotFile);
+        write(deltaFile, emptyLog);
+        syncDirectory(snapshotFile.toAbsolutePath().getParent());
+        generation = next;
+        deltasSinceSnapshot = 0;
+    }
+
+    // The current snapshot's generation; 0 if there is none yet
+    private long currentGeneration() {
+        try {
+            return readSnapshot(snapshotFile, readChecksums()).generation;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    // Entries whose line passes its own checksum, oldest first; empty if there is no list
+    private List<Checksum> readChecksums() {
+        List<Checksum> checksums = new ArrayList<>();
+        String text;
+        try {
+            text = new String(Files.readAllBytes(checksumFile), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return checksums;
+        } catch (IOException e) {
+            System.out.println("Could not read snapshot checksums: " + e.getMessage());
+            return checksums;
+        }
+        for (String line : text.split("\n")) {
+            int space = line.indexOf(' ');
+            if (space < 0 || !line.startsWith(CHECKSUM + " ", space + 1)) {
+                continue;
+            }
+            String body = line.substring(space + 1);
+            try {
+                if (Long.parseLong(line.substring(0, space), 16) != checksum(body)) {
+                    continue;
+                }
+                String[] fields = body.substring(2).split(" ");
+                checksums.add(new Checksum(Long.parseLong(fields[0], 16), Long.parseLong(fields[1]),
+                        Long.parseLong(fields[2])));
+            } catch (RuntimeException e) {
+                // a damaged entry vouches for nothing
+            }
+        }
+        return checksums;
+    }
+
+    // A readable snapshot from before there was a list is about to become
+    // the previous one, so list it too
+    private void vouchForUnlisted(List<Checksum> checksums) {
+        try {
+            readSnapshot(snapshotFile, checksums);
+            checksums.add(Checksum.of(Files.readAllBytes(snapshotFile), generation));
+        } catch (IOException e) {
+            // missing or damaged; nothing to vouch for
+        }
+    }
+
+    private void writeChecksums(List<Checksum> checksums) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (Checksum c : checksums.subList(Math.max(0, checksums.size() - CHECKSUMS_KEPT), checksums.size())) {
+            text.append(line(CHECKSUM, Long.toHexString(c.crc) + " " + c.length + " " + c.generation));
+        }
+        writeAtomically(checksumFile, text.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Replaces a file so that a crash leaves either the old or the new
+     * contents: write a temp file, fsync it, rename it over the target.
+     */
+    static void writeAtomically(Path file, byte[] data) throws IOException {
+        Path target = file.toAbsolutePath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.createDirectories(target.getParent());
+        write(temp, data);
+        move(temp, target);
+        syncDirectory(target.getParent());
+    }
+
+    // Writes and fsyncs a whole file
+    private static void write(Path file, byte[] data) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+    }
+
+    private static void move(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /** Makes the rename durable. Not supported on every platform, so failures are ignored. */
+    private static void syncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Windows can't open directories; the rename is still atomic there
+        }
+    }
+
+    /** Logs upserts of a batch of messages with one write and one fsync. Returns true when a snapshot is due. */
+    boolean appendStoreAll(List<Message> batch) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (Message msg : batch) {
+            lines.append(line(STORE, MessageJson.gson().toJson(msg, Message.class)));
+        }
+        return append(lines.toString(), batch.size());
+    }
+
+    /** Logs removal of a message ID. Returns true when a snapshot is due. */
+    boolean appendRemove(String messageID) throws IOException {
+        return append(line(REMOVE, messageID), 1);
+    }
+
+    private static String line(char op, String payload) {
+        String body = op + " " + payload;
+        return Long.toHexString(checksum(body)) + " " + body + "\n";
+    }
+
+    private synchronized boolean append(String lines, int records) throws IOException {
+        try (FileChannel channel = FileChannel.open(deltaFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(lines.getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        deltasSinceSnapshot += records;
+        return deltasSinceSnapshot >= snapshotInterval();
+    }
+
+    /**
+     * Rebuilds the stored messages from the newest snapshot that passes its
+     * checksum plus the logs that follow it, and cuts any torn tail off the
+     * current log so new appends start clean. Throws only if there is a
+     * snapshot but none, current or previous, can be read; the damaged file
+     * is kept aside so a later save doesn't overwrite it.
+     */
+    synchronized Recovery recover() throws IOException {
+        List<Checksum> checksums = readChecksums();
+        Snapshot current = null;
+        IOException damage = null;
+        try {
+            current = readSnapshot(snapshotFile, checksums);
+        } catch (NoSuchFileException e) {
+            // No snapshot yet, or a crash while the generations were rotating
+        } catch (IOException e) {
+            damage = e;
+        }
+        Delta delta = readDelta(deltaFile);
+        Delta previousDelta = readDelta(previousDeltaFile);
+
+        Snapshot base = current;
+        List<Delta> logs = new ArrayList<>();
+        if (current != null) {
+            // A crash between moving the log aside and starting a new one leaves it as .prev
+            Delta log = matching(current.generation, delta, previousDelta);
+            if (log != null) {
+                logs.add(log);
+            }
+        } else {
+            Snapshot previous = null;
+            try {
+                previous = readSnapshot(previousSnapshotFile, checksums);
+            } catch (NoSuchFileException e) {
+                // Nothing to fall back to
+            } catch (IOException e) {
+                System.out.println("Previous message snapshot is damaged too: " + e.getMessage());
+            }
+            if (damage != null) {
+                keepDamaged(damage, previous != null);
+            }
+            if (previous != null) {
+                base = previous;
+                long next = previous.generation;
+                if (matching(next, previousDelta, null) != null) {
+                    logs.add(previousDelta);
+                    next++;
+                }
+                // The current log follows on from the previous one, or from the
+                // previous snapshot itself when the crash came before rotating it
+                if (delta != null && (delta.generation == next || delta.generation == previous.generation)) {
+                    logs.add(delta);
+                } else if (delta != null && delta.generation > previous.generation) {
+                    throw new IOException("the message logs don't follow on from the previous snapshot"
+                            + (damage != null ? " (" + damage.getMessage() + ")" : ""));
+                }
+            } else if (damage != null) {
+                throw damage;
+            } else if (delta != null && delta.generation == ANY_GENERATION) {
+                logs.add(delta); // Changes logged before the first snapshot
+            }
+        }
+
+        if (base == null && logs.isEmpty()) {
+            return new Recovery(null, 0);
+        }
+        List<Message> messages = base == null ? new ArrayList<>() : base.messages;
+        long bytes = base == null ? 0 : base.bytes;
+        generation = base == null ? ANY_GENERATION : base.generation;
+        for (Delta log : logs) {
+            for (Change change : log.changes) {
+                if (change.stored != null) {
+                    removeID(messages, change.stored.getMessageID());
+                    messages.add(change.stored);
+                } else {
+                    removeID(messages, change.removedID);
+                }
+            }
+            bytes += log.length;
+            // Past a damaged snapshot, the next one must not reuse its number
+            generation = Math.max(generation, log.generation);
+        }
+        deltasSinceSnapshot = delta != null && logs.contains(delta) ? delta.changes.size() : 0;
+        if (delta != null && delta.validLength < delta.length) {
+            repair(delta);
+        }
+        return new Recovery(messages, bytes);
+    }
+
+    // The log that starts from this generation, preferring the first one given
+    private static Delta matching(long generation, Delta preferred, Delta other) {
+        if (preferred != null && (preferred.generation == generation || preferred.generation == ANY_GENERATION)) {
+            return preferred;
+        }
+        if (other != null && other.generation == generation) {
+            return other;
+        }
+        return null;
+    }
+
+    private void keepDamaged(IOException damage, boolean recovered) {
+        try {
+            move(snapshotFile, damagedSnapshotFile);
+            System.out.println(snapshotFile + " is damaged (" + damage.getMessage() + "); kept as "
+                    + damagedSnapshotFile.getFileName()
+                    + (recovered ? ", recovering from the previous snapshot." : "."));
+        } catch (IOException e) {
+            System.out.println("Could not move the damaged snapshot aside: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads a snapshot, checking it against the checksum list; its generation
+     * comes from the entry it matches. Before there was a list, snapshots
+     * are trusted if they hold a complete JSON array.
+     */
+    private static Snapshot readSnapshot(Path file, List<Checksum> checksums) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        long generation = 0;
+        if (!checksums.isEmpty()) {
+            Checksum actual = Checksum.of(bytes, 0);
+            Checksum listed = null;
+            for (Checksum c : checksums) {
+                if (c.crc == actual.crc && c.length == actual.length) {
+                    listed = c;
+                }
+            }
+            if (listed == null) {
+                throw new IOException("checksum " + Long.toHexString(actual.crc) + " of " + actual.length
+                        + " bytes is not in " + CHECKSUM_FILE);
+            }
+            generation = listed.generation;
+        } else {
+            String json = new String(bytes, StandardCharsets.UTF_8).trim();
+            if (!json.isEmpty() && !(json.startsWith("[") && json.endsWith("]"))) {
+                throw new IOException("no checksums listed and not a complete JSON array");
+            }
+        }
+        try {
+            List<Message> messages = MessageLoader.parse(new String(bytes, StandardCharsets.UTF_8));
+            return new Snapshot(messages == null ? new ArrayList<>() : messages, generation, bytes.length);
+        } catch (RuntimeException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    // The lines of a log up to the first torn or corrupt one; null if there is no log
+    private static Delta readDelta(Path path) {
+        byte[] log;
+        try {
+            log = Files.readAllBytes(path);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            System.out.println("Could not read message delta log: " + e.getMessage());
+            return null;
+        }
+
+        Delta delta = new Delta(log.length);
+        int start = 0;
+        while (start < log.length) {
+            int end = start;
+            while (end < log.length && log[end] != '\n') {
+                end++;
+            }
+            if (end == log.length) {
+                break; // torn last line
+            }
+            String line = new String(log, start, end - start, StandardCharsets.UTF_8);
+            if (!parseLine(line, delta, start == 0)) {
+                break;
+            }
+            start = end + 1;
+            delta.validLength = start;
+        }
+        return delta;
+    }
+
+    private void repair(Delta delta) {
+        System.out.println("Discarding " + (delta.length - delta.validLength) + " bytes of incomplete message log.");
+        try (FileChannel channel = FileChannel.open(deltaFile, StandardOpenOption.WRITE)) {
+            channel.truncate(delta.validLength);
+            channel.force(true);
+        } catch (IOException e) {
+            System.out.println("Could not repair message delta log: " + e.getMessage());
+        }
+    }
+
+    // Adds the line's change to the delta; false if it is malformed or fails its checksum
+    private static boolean parseLine(String line, Delta delta, boolean first) {
+        int space = line.indexOf(' ');
+        if (space < 0 || line.length() < space + 3) {
+            return false;
+        }
+        String body = line.substring(space + 1);
+        try {
+            if (Long.parseLong(line.substring(0, space), 16) != checksum(body)) {
+                return false;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        String payload = body.substring(2);
+        switch (body.charAt(0)) {
+            case STORE:
+                Message msg;
+                try {
+                    msg = MessageJson.gson().fromJson(payload, Message.class);
+                } catch (RuntimeException e) {
+                    return false;
+                }
+                if (msg == null || msg.getMessageID() == null) {
+                    return false;
+                }
+                delta.changes.add(new Change(msg, null));
+                return true;
+            case REMOVE:
+                delta.changes.add(new Change(null, payload));
+                return true;
+            case GENERATION:
+                if (!first) {
+                    return false;
+                }
+                try {
+                    delta.generation = Long.parseLong(payload);
+                    return true;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            default:
+                return false;
+        }
+    }
+
+    private static void removeID(List<Message> messages, String messageID) {
+        Iterator<Message> it = messages.iterator();
+        while (it.hasNext()) {
+            if (messageID.equals(it.next().getMessageID())) {
+                it.remove();
+            }
+        }
+    }
+
+    private static long checksum(String body) {
+        CRC32 crc = new CRC32();
+        crc.update(body.getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,465 @@
+package register2;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import userdatastore.SymbolTable;
+
+/**
+ * Compact column layout for large message histories, such as the
+ * disregarded list and analytics snapshots. Instead of one Message plus its
+ * Strings per row it keeps:
+ * <ul>
+ * <li>message IDs in an int[] and timestamps in a long[]</li>
+ * <li>senders as IDs in the shared {@link SymbolTable}</li>
+ * <li>+27 recipients packed into a long (27XXXXXXXXX); anything else is a
+ * negative code into a small fallback dictionary</li>
+ * <li>content as UTF-8 packed into 64KB pages, each row's end kept as a
+ * page number and position in an int and its length in chars in a char</li>
+ * </ul>
+ * A page is deflated once it is full; only the one being filled is kept
+ * raw. That is 30 bytes per row plus the deflated body, around a quarter
+ * of its UTF-8 for chat text, where a Message holding its own Strings takes
+ * over 200; {@link ColumnFootprint} measures both.
+ *
+ * Rows are only ever appended. {@link #rows} returns a frozen view of the
+ * rows there are now: appends never write to a slot it can see, and when an
+ * array fills up it is copied, so old views keep the old arrays. A full page
+ * is deflated into a new array and the next body starts a new raw page, so
+ * old views keep reading the raw page they were given. Appends must come
+ * from one thread, or under one lock, as Message does; views can be read
+ * from any thread once handed over safely, e.g. in a volatile snapshot.
+ */
+public class MessageColumns {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int PAGE_BITS = 16;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int POSITION_MASK = PAGE_SIZE - 1;
+
+    private int size = 0;
+    private int[] ids = new int[INITIAL_CAPACITY];
+    private long[] timestamps = new long[INITIAL_CAPACITY];
+    private int[] senders = new int[INITIAL_CAPACITY];
+    private long[] recipients = new long[INITIAL_CAPACITY];
+    // Where each row's body ends: page number << PAGE_BITS | position in the page
+    private int[] contentEnds = new int[INITIAL_CAPACITY];
+    private char[] contentLengths = new char[INITIAL_CAPACITY];
+    // Full pages, each deflated on its own; page number sealedCount is openPage
+    private byte[][] sealedPages = new byte[4][];
+    private int sealedCount = 0;
+    private byte[] openPage = null;
+    private int pagePosition = PAGE_SIZE;
+
+    private final SymbolTable symbols = SymbolTable.shared();
+    private final Map<String, Integer> otherRecipientCodes = new HashMap<>();
+    private String[] otherRecipients = new String[4];
+
+    /** Copies the given messages into a new column store. */
+    public static MessageColumns fromMessages(List<Message> messages) {
+        MessageColumns columns = new MessageColumns();
+        for (Message m : messages) {
+            columns.append(m);
+        }
+        return columns;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Appends a message and returns its row number. */
+    public int append(Message m) {
+        return append(m.getId(), m.getTimestamp(),
+                m.getSender(), m.getRecipient(), m.getContent());
+    }
+
+    /** Appends a row and returns its row number. Bodies are limited to just under 64KB of UTF-8. */
+    public int append(int id, long timestamp, String sender, String recipient, String content) {
+        byte[] utf8 = content.getBytes(StandardCharsets.UTF_8);
+        if (utf8.length > POSITION_MASK) {
+            throw new IllegalArgumentException("Message content too long for a column page: " + utf8.length + " bytes");
+        }
+        ensureCapacity(size + 1);
+        // Positions run to POSITION_MASK so an end always fits beside its page number
+        if (pagePosition + utf8.length > POSITION_MASK) {
+            if (openPage != null) {
+                seal();
+            }
+            openPage = new byte[PAGE_SIZE];
+            pagePosition = 0;
+        }
+        System.arraycopy(utf8, 0, openPage, pagePosition, utf8.length);
+        pagePosition += utf8.length;
+
+        ids[size] = id;
+        timestamps[size] = timestamp;
+        senders[size] = sender == null ? SymbolTable.NOT_FOUND : symbols.intern(sender);
+        recipients[size] = packRecipient(recipient);
+        contentEnds[size] = sealedCount << PAGE_BITS | pagePosition;
+        // Fits: a String has no more chars than its UTF-8 has bytes
+        contentLengths[size] = (char) content.length();
+        return size++;
+    }
+
+    // Deflates the open page into the sealed ones. The raw page is left as
+    // it is for views that still read it, and a new one started after this.
+    private void seal() {
+        if (sealedCount == sealedPages.length) {
+            sealedPages = Arrays.copyOf(sealedPages, sealedCount * 2);
+        }
+        sealedPages[sealedCount++] = deflate(openPage, pagePosition);
+    }
+
+    // The fastest level: appends come under Message's lock, and it saves
+    // nearly as much as the default on chat text
+    private static byte[] deflate(byte[] raw, int length) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw, 0, length);
+            deflater.finish();
+            byte[] buffer = new byte[length / 2 + 64];
+            int size = 0;
+            while (!deflater.finished()) {
+                if (size == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                size += deflater.deflate(buffer, size, buffer.length - size);
+            }
+            return Arrays.copyOf(buffer, size);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] deflated) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated);
+            byte[] page = new byte[PAGE_SIZE];
+            int length = 0;
+            while (!inflater.finished()) {
+                int n = inflater.inflate(page, length, page.length - length);
+                if (n == 0 && (inflater.needsInput() || length == page.length)) {
+                    throw new IllegalStateException("Corrupt column page");
+                }
+                length += n;
+            }
+            return page;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt column page", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed <= ids.length) {
+            return;
+        }
+        int capacity = Math.max(needed, ids.length * 2);
+        ids = Arrays.copyOf(ids, capacity);
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        senders = Arrays.copyOf(senders, capacity);
+        recipients = Arrays.copyOf(recipients, capacity);
+        contentEnds = Arrays.copyOf(contentEnds, capacity);
+        contentLengths = Arrays.copyOf(contentLengths, capacity);
+    }
+
+    private long packRecipient(String recipient) {
+        if (Message.checkRecipientCell(recipient)) {
+            return Long.parseLong(recipient.substring(1));
+        }
+        Integer code = otherRecipientCodes.get(recipient);
+        if (code == null) {
+            code = otherRecipientCodes.size();
+            if (code == otherRecipients.length) {
+                otherRecipients = Arrays.copyOf(otherRecipients, code * 2);
+            }
+            otherRecipients[code] = recipient;
+            otherRecipientCodes.put(recipient, code);
+        }
+        return -(code + 1L);
+    }
+
+    /** The rows appended so far; later appends don't show in it. */
+    public Rows rows() {
+        return new Rows(this);
+    }
+
+    /**
+     * Frozen view of the first rows of a MessageColumns. As a List each get
+     * returns a small Message that reads its row through these getters, and
+     * is not in Message's registry or ID pool; its String getters decode on
+     * every call. The primitive getters read the columns without allocating.
+     * Reading content inflates the row's page, and the last page inflated is
+     * kept, so reading rows in order inflates each page once.
+     */
+    public static final class Rows extends AbstractList<Message> implements RandomAccess {
+        private final int size;
+        private final int[] ids;
+        private final long[] timestamps;
+        private final int[] senders;
+        private final long[] recipients;
+        private final int[] contentEnds;
+        private final char[] contentLengths;
+        private final byte[][] sealedPages;
+        private final int sealedCount;
+        private final byte[] openPage;
+        private final String[] otherRecipients;
+        private final SymbolTable symbols;
+        private volatile InflatedPage lastInflated;
+
+        private Rows(MessageColumns columns) {
+            this.size = columns.size;
+            this.ids = columns.ids;
+            this.timestamps = columns.timestamps;
+            this.senders = columns.senders;
+            this.recipients = columns.recipients;
+            this.contentEnds = columns.contentEnds;
+            this.contentLengths = columns.contentLengths;
+            this.sealedPages = columns.sealedPages;
+            this.sealedCount = columns.sealedCount;
+            this.openPage = columns.openPage;
+            this.otherRecipients = columns.otherRecipients;
+            this.symbols = columns.symbols;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Message get(int row) {
+            check(row);
+            return new RowMessage(row);
+        }
+
+        private void check(int row) {
+            if (row < 0 || row >= size) {
+                throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+            }
+        }
+
+        public int getId(int row) {
+            check(row);
+            return ids[row];
+        }
+
+        public long getTimestamp(int row) {
+            check(row);
+            return timestamps[row];
+        }
+
+        /** The sender's ID in the shared SymbolTable. */
+        public int getSenderCode(int row) {
+            check(row);
+            return senders[row];
+        }
+
+        /** The recipient as packed by MessageColumns; see {@link #recipientName}. */
+        public long getPackedRecipient(int row) {
+            check(row);
+            return recipients[row];
+        }
+
+        public int getContentByteLength(int row) {
+            check(row);
+            return (contentEnds[row] & POSITION_MASK) - contentStart(row);
+        }
+
+        // A body starts where the row before ended, or at the top of a new page
+        private int contentStart(int row) {
+            int end = contentEnds[row];
+            if (row == 0 || contentEnds[row - 1] >>> PAGE_BITS != end >>> PAGE_BITS) {
+                return 0;
+            }
+            return contentEnds[row - 1] & POSITION_MASK;
+        }
+
+        /** Length of the content in chars, as String.length() would give, without decoding it. */
+        public int getContentLength(int row) {
+            check(row);
+            return contentLengths[row];
+        }
+
+        public String getMessageID(int row) {
+            return Message.idName(getId(row));
+        }
+
+        public String getSender(int row) {
+            return senderName(getSenderCode(row));
+        }
+
+        public String getRecipient(int row) {
+            return recipientName(getPackedRecipient(row));
+        }
+
+        public String getContent(int row) {
+            check(row);
+            int start = contentStart(row);
+            return new String(page(contentEnds[row] >>> PAGE_BITS), start,
+                    (contentEnds[row] & POSITION_MASK) - start, StandardCharsets.UTF_8);
+        }
+
+        // The raw bytes of a page, inflating it unless it is the open one or
+        // was the last one inflated
+        private byte[] page(int number) {
+            if (number == sealedCount) {
+                return openPage;
+            }
+            InflatedPage page = lastInflated;
+            if (page == null || page.number != number) {
+                page = new InflatedPage(number, inflate(sealedPages[number]));
+                lastInflated = page;
+            }
+            return page.bytes;
+        }
+
+        /** Turns a sender code from {@link #getSenderCode} back into the name; null if there was none. */
+        public String senderName(int code) {
+            return code == SymbolTable.NOT_FOUND ? null : symbols.name(code);
+        }
+
+        /** Turns a packed recipient from {@link #getPackedRecipient} back into the number. */
+        public String recipientName(long packed) {
+            if (packed < 0) {
+                return otherRecipients[(int) (-packed - 1)];
+            }
+            return "+" + packed;
+        }
+
+        /** Returns a view positioned on the given row. */
+        public View view(int row) {
+            return new View().moveTo(row);
+        }
+
+        /** Visits every row with a single reused view. */
+        public void forEachRow(Consumer<View> action) {
+            View view = new View();
+            for (int row = 0; row < size; row++) {
+                action.accept(view.moveTo(row));
+            }
+        }
+
+        /**
+         * Flyweight over one row. Primitive getters avoid allocation; the
+         * String getters decode on every call, so hold on to the result if
+         * reused.
+         */
+        public final class View {
+            private int row;
+
+            public View moveTo(int row) {
+                check(row);
+                this.row = row;
+                return this;
+            }
+
+            public int getId() {
+                return ids[row];
+            }
+
+            public long getTimestamp() {
+                return timestamps[row];
+            }
+
+            public int getSenderCode() {
+                return senders[row];
+            }
+
+            public long getPackedRecipient() {
+                return recipients[row];
+            }
+
+            public int getContentByteLength() {
+                return Rows.this.getContentByteLength(row);
+            }
+
+            public String getMessageID() {
+                return Rows.this.getMessageID(row);
+            }
+
+            public String getSender() {
+                return Rows.this.getSender(row);
+            }
+
+            public String getRecipient() {
+                return Rows.this.getRecipient(row);
+            }
+
+            public String getContent() {
+                return Rows.this.getContent(row);
+            }
+        }
+
+        // What get returns: a Message that holds only its row number
+        private final class RowMessage extends Message {
+            private final int row;
+
+            RowMessage(int row) {
+                this.row = row;
+            }
+
+            @Override
+            public String getSender() {
+                return Rows.this.getSender(row);
+            }
+
+            @Override
+            public String getRecipient() {
+                return Rows.this.getRecipient(row);
+            }
+
+            @Override
+            public String getContent() {
+                return Rows.this.getContent(row);
+            }
+
+            @Override
+            public String getMessageID() {
+                return Rows.this.getMessageID(row);
+            }
+
+            @Override
+            int getId() {
+                return ids[row];
+            }
+
+            @Override
+            public int getSenderSymbol() {
+                return senders[row];
+            }
+
+            @Override
+            public int getRecipientSymbol() {
+                return symbols.lookup(getRecipient());
+            }
+
+            @Override
+            public long getTimestamp() {
+                return timestamps[row];
+            }
+        }
+    }
+
+    private static final class InflatedPage {
+        final int number;
+        final byte[] bytes;
+
+        InflatedPage(int number, byte[] bytes) {
+            this.number = number;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package register2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Ordered stream of changes to the message store. Every send, store,
+ * disregard and delete is published, while the store's lock is held, as an
+ * immutable {@link ChangeEvent} with the next sequence number.
+ *
+ * Each subscriber has its own fixed-size ring buffer with one writer (the
+ * bus) and one reader, so publishing is a slot write and a volatile store
+ * per subscriber. Publishing never waits for a consumer: when a
+ * subscriber's ring is full, the event is dropped for that subscriber and
+ * counted, and the gap shows in the sequence numbers it sees. It can catch
+ * up by subscribing again from the first sequence it missed.
+ *
+ * The bus keeps the last {@code quickchat.events.retain} events (default
+ * 4096) so a new subscriber can start from an earlier sequence; those are
+ * read from the bus history before the subscriber's own ring.
+ */
+public class MessageEventBus {
+
+    public static final String RETAIN_PROPERTY = "quickchat.events.retain";
+
+    static final int DEFAULT_RING_SIZE = 1024;
+
+    private static final MessageEventBus shared = new MessageEventBus(Integer.getInteger(RETAIN_PROPERTY, 4096));
+
+    private final ChangeEvent[] history;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private volatile long lastSequence = 0;
+
+    public enum Type { SENT, STORED, DISREGARDED, DELETED }
+
+    /** A change to one message, with the message's fields as they were at the time. */
+    public static final class ChangeEvent {
+        public final long sequence;
+        public final Type type;
+        public final long publishedAt;
+        public final String messageID;
+        public final String sender;
+        public final String recipient;
+        public final String content;
+        public final long timestamp;
+
+        ChangeEvent(long sequence, Type type, Message msg) {
+            this.sequence = sequence;
+            this.type = type;
+            this.publishedAt = System.currentTimeMillis();
+            this.messageID = msg.getMessageID();
+            this.sender = msg.getSender();
+            this.recipient = msg.getRecipient();
+            this.content = msg.getContent();
+            this.timestamp = msg.getTimestamp();
+        }
+
+        @Override
+        public String toString() {
+            return "#" + sequence + " " + type + " " + messageID + " " + sender + " -> " + recipient;
+        }
+    }
+
+    /** One consumer's view of the stream. Only one thread should read from it. */
+    public final class Subscription {
+        private final String name;
+        private final ChangeEvent[] ring;
+        private final int mask;
+        // Ring positions: head is only written by the bus, tail only by the reader
+        private volatile long head;
+        private volatile long tail;
+        // Replayed from the bus history before the ring: sequences replayNext..replayEnd
+        private long replayNext;
+        private final long replayEnd;
+        private volatile long lastConsumed;
+        private final AtomicLong dropped = new AtomicLong();
+        private volatile Thread waiter;
+        private volatile boolean closed;
+
+        Subscription(String name, int ringSize, long from, long replayEnd) {
+            int size = Integer.highestOneBit(Math.max(2, ringSize - 1)) << 1;
+            this.name = name;
+            this.ring = new ChangeEvent[size];
+            this.mask = size - 1;
+            this.replayNext = from;
+            this.replayEnd = replayEnd;
+            this.lastConsumed = from - 1;
+        }
+
+        // Called with the bus lock held, so there is a single writer
+        void offer(ChangeEvent event) {
+            long h = head;
+            if (h - tail >= ring.length) {
+                dropped.incrementAndGet();
+                return;
+            }
+            ring[(int) (h & mask)] = event;
+            head = h + 1;
+            Thread t = waiter;
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+        }
+
+        /** The next event, or null if there is none yet. */
+        public ChangeEvent poll() {
+            if (replayNext <= replayEnd) {
+                ChangeEvent event = replayed();
+                if (event != null) {
+                    lastConsumed = event.sequence;
+                    return event;
+                }
+            }
+            long t = tail;
+            if (t == head) {
+                return null;
+            }
+            int slot = (int) (t & mask);
+            ChangeEvent event = ring[slot];
+            ring[slot] = null;
+            tail = t + 1;
+            lastConsumed = event.sequence;
+            return event;
+        }
+
+        private ChangeEvent replayed() {
+            ChangeEvent event = MessageEventBus.this.retained(replayNext);
+            if (event == null) {
+                // Fell out of the history while we were reading; skip to what is left
+                long oldest = oldestRetained();
+                dropped.addAndGet(Math.min(replayEnd + 1, oldest) - replayNext);
+                replayNext = Math.min(replayEnd + 1, oldest);
+                if (replayNext > replayEnd) {
+                    return null;
+                }
+                event = MessageEventBus.this.retained(replayNext);
+            }
+            replayNext++;
+            return event;
+        }
+
+        /** Waits up to the timeout for the next event; null if none arrived or it was closed. */
+        public ChangeEvent poll(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            waiter = Thread.currentThread();
+            try {
+                ChangeEvent event;
+                while ((event = poll()) == null && !closed) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return null;
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                }
+                return event;
+            } finally {
+                waiter = null;
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /** Sequence of the last event this subscriber read. */
+        public long lastConsumed() {
+            return lastConsumed;
+        }
+
+        /** How many published events this subscriber has not read yet. */
+        public long lag() {
+            return Math.max(0, lastSequence - lastConsumed);
+        }
+
+        /** Events waiting in this subscriber's ring. */
+        public int backlog() {
+            return (int) (head - tail);
+        }
+
+        /** Events this subscriber missed because its ring was full or they left the history. */
+        public long dropped() {
+            return dropped.get();
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        /** Stops delivery to this subscriber. */
+        public void close() {
+            closed = true;
+            subscriptions.remove(this);
+            Thread t = waiter;
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name + ": lag " + lag() + ", backlog " + backlog() + "/" + ring.length + ", dropped " + dropped.get();
+        }
+    }
+
+    MessageEventBus(int retain) {
+        if (retain < 1) {
+            throw new IllegalArgumentException("Retain at least one event");
+        }
+        this.history = new ChangeEvent[retain];
+    }
+
+    public static MessageEventBus shared() {
+        return shared;
+    }
+
+    synchronized void publish(Type type, Message msg) {
+        ChangeEvent event = new ChangeEvent(lastSequence + 1, type, msg);
+        history[(int) ((event.sequence - 1) % history.length)] = event;
+        lastSequence = event.sequence;
+        for (Subscription s : subscriptions) {
+            s.offer(event);
+        }
+    }
+
+    /** Subscribes to events published from now on. */
+    public Subscription subscribe(String name) {
+        return subscribe(name, Long.MAX_VALUE, DEFAULT_RING_SIZE);
+    }
+
+    /**
+     * Subscribes starting at the given sequence. Earlier events still in the
+     * bus history are replayed first; ones already gone count as dropped.
+     */
+    public synchronized Subscription subscribe(String name, long fromSequence, int ringSize) {
+        long from = Math.max(1, Math.min(fromSequence, lastSequence + 1));
+        Subscription s = new Subscription(name, ringSize, from, lastSequence);
+        subscriptions.add(s);
+        return s;
+    }
+
+    /**
+     * Subscribes and hands every event to the handler on a daemon thread
+     * until the subscription is closed.
+     */
+    public Subscription subscribe(String name, long fromSequence, Consumer<ChangeEvent> handler) {
+        Subscription s = subscribe(name, fromSequence, DEFAULT_RING_SIZE);
+        Thread t = new Thread(() -> {
+            try {
+                while (!s.isClosed()) {
+                    ChangeEvent event = s.poll(1, TimeUnit.SECONDS);
+                    if (event != null) {
+                        handler.accept(event);
+                    }
+                }
+            } catch (InterruptedException e) {
+                s.close();
+            }
+        }, "events-" + name);
+        t.setDaemon(true);
+        t.start();
+        return s;
+    }
+
+    public long lastSequence() {
+        return lastSequence;
+    }
+
+    /** Lag, backlog and drops for every live subscription. */
+    public List<Subscription> subscriptions() {
+        return new ArrayList<>(subscriptions);
+    }
+
+    private synchronized ChangeEvent retained(long sequence) {
+        if (sequence < 1 || sequence > lastSequence || sequence < oldestRetained()) {
+            return null;
+        }
+        return history[(int) ((sequence - 1) % history.length)];
+    }
+
+    private synchronized long oldestRetained() {
+        return Math.max(1, lastSequence - history.length + 1);
+    }
+}
@@ -0,0 +1,119 @@
+package register2;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+
+import java.time.Duration;
+
+/**
+ * Java Flight Recorder events for the message store. Each event is timed
+ * between begin() and commit(), so the duration comes for free.
+ */
+public class MessageEvents {
+
+    /** Set -Dquickchat.jfr=true to start the ring buffer recording. */
+    public static final String JFR_PROPERTY = "quickchat.jfr";
+
+    private static Recording recording;
+
+    @Name("register2.SaveMessages")
+    @Label("Save Stored Messages")
+    @Category({"QuickChat", "Persistence"})
+    static class SaveEvent extends Event {
+        @Label("Records")
+        int records;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long bytesWritten;
+
+        @Label("Store")
+        String store;
+    }
+
+    @Name("register2.LoadMessages")
+    @Label("Load Stored Messages")
+    @Category({"QuickChat", "Persistence"})
+    static class LoadEvent extends Event {
+        @Label("Records")
+        int records;
+
+        @Label("Bytes Read")
+        @DataAmount
+        long bytesRead;
+
+        @Label("Store")
+        String store;
+    }
+
+    @Name("register2.SearchByRecipient")
+    @Label("Search Messages By Recipient")
+    @Category({"QuickChat", "Search"})
+    static class SearchEvent extends Event {
+        @Label("Recipient")
+        String recipient;
+
+        @Label("Records Scanned")
+        int scanned;
+
+        @Label("Matches")
+        int matches;
+    }
+
+    @Name("register2.DeleteByHash")
+    @Label("Delete Message By Hash")
+    @Category({"QuickChat", "Search"})
+    static class DeleteEvent extends Event {
+        @Label("Hash")
+        String hash;
+
+        @Label("Records Scanned")
+        int scanned;
+
+        @Label("Deleted")
+        boolean deleted;
+    }
+
+    @Name("register2.FullReport")
+    @Label("Full Report")
+    @Category({"QuickChat", "Reports"})
+    static class ReportEvent extends Event {
+        @Label("Records")
+        int records;
+
+        @Label("Report Length")
+        @DataAmount
+        long chars;
+    }
+
+    /**
+     * Starts a continuous recording kept as a ring buffer (bounded by age
+     * and size) when the quickchat.jfr system property is true. Dump it with
+     * "jcmd <pid> JFR.dump name=QuickChat filename=quickchat.jfr".
+     */
+    public static synchronized void startContinuousRecording() {
+        if (recording != null || !Boolean.getBoolean(JFR_PROPERTY)) {
+            return;
+        }
+        try {
+            Recording r = new Recording();
+            r.setName("QuickChat");
+            r.setToDisk(true);
+            r.setMaxAge(Duration.ofMinutes(Long.getLong("quickchat.jfr.maxAgeMinutes", 30)));
+            r.setMaxSize(Long.getLong("quickchat.jfr.maxSizeMb", 64) * 1024 * 1024);
+            r.enable(SaveEvent.class);
+            r.enable(LoadEvent.class);
+            r.enable(SearchEvent.class);
+            r.enable(DeleteEvent.class);
+            r.enable(ReportEvent.class);
+            r.start();
+            recording = r;
+        } catch (RuntimeException e) {
+            System.out.println("Could not start flight recording: " + e.getMessage());
+        }
+    }
+}
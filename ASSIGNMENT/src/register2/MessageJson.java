@@ -0,0 +1,254 @@
+package register2;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Gson setup for persisted messages. With -Dquickchat.compress=true bodies
+ * are written through a {@link DictionaryCodec} into a base64 "contentZ"
+ * field, unless that would not be smaller than the plain "content" field.
+ * Reading accepts either field, so plain and compressed records can mix.
+ * Messages that have been sent also carry "sent": true.
+ *
+ * The dictionary lives in storedMessages.dict in the store directory. It
+ * is trained once, from the message history, at the first save after
+ * -Dquickchat.compress.trainAfter bodies have been seen (default 16), or
+ * straight away by {@link Message#trainCompressionDictionary}.
+ * {@link CompressionBenchmark} measures what it saves and costs.
+ */
+public class MessageJson {
+
+    public static final String COMPRESS_PROPERTY = "quickchat.compress";
+    public static final String TRAIN_AFTER_PROPERTY = "quickchat.compress.trainAfter";
+    static final String DICTIONARY_FILE = "storedMessages.dict";
+
+    /** Bodies needed before a dictionary is trained without being asked. */
+    static final int MIN_TRAINING_SAMPLES = 16;
+
+    /** Most bodies a dictionary is trained from; the newest are used. */
+    static final int MAX_TRAINING_SAMPLES = 2000;
+
+    private static volatile ContentCodec codec = ContentCodec.NONE;
+    private static volatile DictionaryCodec dictionaryCodec;
+
+    private static final Gson gson = new GsonBuilder()
+            .registerTypeAdapter(Message.class, new MessageAdapter(true))
+            .create();
+
+    private static final Gson wireGson = new GsonBuilder()
+            .registerTypeAdapter(Message.class, new MessageAdapter(false))
+            .create();
+
+    static {
+        loadDictionary();
+    }
+
+    public static Gson gson() {
+        return gson;
+    }
+
+    /**
+     * Gson for messages sent to other processes, such as replication
+     * followers. Bodies are always written plain, since the receiver may
+     * not have this process's dictionary.
+     */
+    public static Gson wireGson() {
+        return wireGson;
+    }
+
+    /** The codec new records are written with. */
+    public static ContentCodec getCodec() {
+        return codec;
+    }
+
+    public static void setCodec(ContentCodec newCodec) {
+        codec = newCodec;
+    }
+
+    private static void loadDictionary() {
+        Path path = MessageStore.file(DICTIONARY_FILE);
+        if (!Files.exists(path)) {
+            return;
+        }
+        try {
+            dictionaryCodec = new DictionaryCodec(Files.readAllBytes(path));
+            if (Boolean.getBoolean(COMPRESS_PROPERTY)) {
+                codec = dictionaryCodec;
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Could not read message dictionary: " + e.getMessage());
+        }
+    }
+
+    /** Whether a dictionary has been trained or loaded. */
+    public static boolean hasDictionary() {
+        return dictionaryCodec != null;
+    }
+
+    /**
+     * Trains the dictionary if compression is on, none exists yet and there
+     * are at least quickchat.compress.trainAfter samples. Called before each
+     * save with bodies from the message history; they are only gathered
+     * once the first two checks pass, so saves pay nothing otherwise.
+     */
+    static synchronized void trainIfNeeded(Supplier<List<String>> samples) {
+        if (!wantsDictionary()) {
+            return;
+        }
+        List<String> gathered = samples.get();
+        if (gathered.size() >= Math.max(1, Integer.getInteger(TRAIN_AFTER_PROPERTY, MIN_TRAINING_SAMPLES))) {
+            train(gathered);
+        }
+    }
+
+    /**
+     * Trains and saves the dictionary from these bodies however few there
+     * are, if compression is on and no dictionary exists yet. An existing
+     * dictionary is never replaced, since records written with it could no
+     * longer be read. Returns whether a dictionary was made.
+     */
+    static synchronized boolean train(Supplier<List<String>> samples) {
+        return wantsDictionary() && train(samples.get());
+    }
+
+    // Compression is on and there is no dictionary yet
+    private static boolean wantsDictionary() {
+        return dictionaryCodec == null && Boolean.getBoolean(COMPRESS_PROPERTY);
+    }
+
+    private static boolean train(List<String> samples) {
+        if (samples.isEmpty()) {
+            return false;
+        }
+        byte[] dictionary = DictionaryCodec.train(samples, DictionaryCodec.MAX_DICTIONARY_SIZE);
+        if (dictionary.length == 0) {
+            return false;
+        }
+        try {
+            MessageCheckpoint.writeAtomically(MessageStore.file(DICTIONARY_FILE), dictionary);
+            dictionaryCodec = new DictionaryCodec(dictionary);
+            codec = dictionaryCodec;
+            return true;
+        } catch (IOException e) {
+            System.out.println("Could not save message dictionary: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static class MessageAdapter extends TypeAdapter<Message> {
+
+        private final boolean compress;
+
+        MessageAdapter(boolean compress) {
+            this.compress = compress;
+        }
+
+        @Override
+        public void write(JsonWriter out, Message m) throws IOException {
+            if (m == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("sender").value(m.getSender());
+            out.name("recipient").value(m.getRecipient());
+            writeContent(out, m.getContent());
+            out.name("messageID").value(m.getMessageID());
+            out.name("timestamp").value(m.getTimestamp());
+            if (m.isSent()) {
+                out.name("sent").value(true);
+            }
+            out.endObject();
+        }
+
+        private void writeContent(JsonWriter out, String content) throws IOException {
+            ContentCodec current = codec;
+            if (compress && content != null && current != ContentCodec.NONE) {
+                byte[] encoded = current.encode(content);
+                if (!current.isPassthrough(encoded)) {
+                    String packed = Base64.getEncoder().encodeToString(encoded);
+                    if (packed.length() < content.getBytes(StandardCharsets.UTF_8).length) {
+                        out.name("contentZ").value(packed);
+                        return;
+                    }
+                }
+            }
+            out.name("content").value(content);
+        }
+
+        @Override
+        public Message read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            String sender = null;
+            String recipient = null;
+            String content = null;
+            String messageID = null;
+            long timestamp = 0;
+            boolean sent = false;
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "sender":
+                        sender = in.nextString();
+                        break;
+                    case "recipient":
+                        recipient = in.nextString();
+                        break;
+                    case "content":
+                        content = in.nextString();
+                        break;
+                    case "contentZ":
+                        content = unpack(in.nextString());
+                        break;
+                    case "messageID":
+                        messageID = in.nextString();
+                        break;
+                    case "timestamp":
+                        timestamp = in.nextLong();
+                        break;
+                    case "sent":
+                        sent = in.nextBoolean();
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            Message m = new Message(sender, recipient, content, messageID, timestamp);
+            m.setSent(sent);
+            return m;
+        }
+
+        private String unpack(String packed) throws IOException {
+            DictionaryCodec dict = dictionaryCodec;
+            if (dict == null) {
+                throw new IOException("Compressed message found but " + DICTIONARY_FILE + " is missing");
+            }
+            try {
+                return dict.decode(Base64.getDecoder().decode(packed));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Corrupt compressed message", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package register2;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Loads the message history off the UI thread. The JSON array is split into
+ * element ranges which are parsed in parallel with fork-join, then joined
+ * in file order. The registry and indexes are built once, over the whole
+ * history, by {@link #index}.
+ */
+public class MessageLoader {
+
+    /** Elements parsed by one leaf task. */
+    static final int CHUNK_SIZE = 256;
+
+    private static final Gson gson = MessageJson.gson();
+    private static final Type listType = new TypeToken<List<Message>>() {}.getType();
+
+    private static final AtomicBoolean started = new AtomicBoolean(false);
+    private static final CompletableFuture<Void> ready = new CompletableFuture<>();
+    private static volatile boolean loaded = false;
+
+    /** Messages, registry and indexes of a loaded history. */
+    static class Chunk {
+        final List<Message> messages = new ArrayList<>();
+        final Map<String, Message> registry = new HashMap<>();
+        final List<String> ids = new ArrayList<>();
+        final List<String> hashes = new ArrayList<>();
+
+        void add(Message m) {
+            messages.add(m);
+            registry.put(m.getMessageID(), m);
+            ids.add(m.getMessageID());
+            hashes.add(m.createMessageHash());
+        }
+    }
+
+    /**
+     * Starts the background load once. Safe to call from Login.main before
+     * the first frame is shown; Message also calls it on class init.
+     */
+    public static void start() {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        Thread loader = new Thread(() -> {
+            try {
+                Message.loadHistory();
+            } finally {
+                loaded = true;
+                ready.complete(null);
+            }
+        }, "message-history-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    public static boolean isReady() {
+        return loaded;
+    }
+
+    /** Completes once the history has been loaded (or failed to load). */
+    public static CompletableFuture<Void> whenReady() {
+        return ready;
+    }
+
+    /** Blocks the caller until the history is available. */
+    public static void awaitReady() {
+        if (!loaded) {
+            start();
+            ready.join();
+        }
+    }
+
+    /** Parses a JSON array of messages in parallel. Returns null for a blank or null array. */
+    static List<Message> parse(String json) {
+        int[][] spans = findElements(json);
+        if (spans == null) {
+            return null;
+        }
+        return ForkJoinPool.commonPool().invoke(new ParseTask(json, spans, 0, spans.length));
+    }
+
+    /** Indexes messages that are already in memory, e.g. after replaying the delta log. */
+    static Chunk index(List<Message> messages) {
+        Chunk chunk = new Chunk();
+        for (Message m : messages) {
+            chunk.add(m);
+        }
+        return chunk;
+    }
+
+    /**
+     * Finds the [start, end) offsets of each top level object in the array,
+     * skipping over string contents so braces inside messages don't count.
+     */
+    static int[][] findElements(String json) {
+        String trimmed = json.trim();
+        if (trimmed.isEmpty() || trimmed.equals("null")) {
+            return null;
+        }
+        List<int[]> spans = new ArrayList<>();
+        int depth = 0;
+        int start = -1;
+        boolean inString = false;
+        for (int i = 0; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (inString) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == '"') {
+                    inString = false;
+                }
+                continue;
+            }
+            if (c == '"') {
+                inString = true;
+            } else if (c == '{' || c == '[') {
+                depth++;
+                if (c == '{' && depth == 2) {
+                    start = i;
+                }
+            } else if (c == '}' || c == ']') {
+                if (c == '}' && depth == 2) {
+                    spans.add(new int[]{start, i + 1});
+                }
+                depth--;
+            }
+        }
+        return spans.toArray(new int[0][]);
+    }
+
+    private static class ParseTask extends RecursiveTask<List<Message>> {
+        private static final long serialVersionUID = 1L;
+
+        private final String json;
+        private final int[][] spans;
+        private final int from;
+        private final int to;
+
+        ParseTask(String json, int[][] spans, int from, int to) {
+            this.json = json;
+            this.spans = spans;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<Message> compute() {
+            if (to - from <= CHUNK_SIZE) {
+                List<Message> messages = new ArrayList<>();
+                if (from == to) {
+                    return messages;
+                }
+                String slice = "[" + json.substring(spans[from][0], spans[to - 1][1]) + "]";
+                List<Message> parsed = gson.fromJson(slice, listType);
+                for (Message m : parsed) {
+                    if (m != null) {
+                        messages.add(m);
+                    }
+                }
+                return messages;
+            }
+            int mid = (from + to) >>> 1;
+            ParseTask left = new ParseTask(json, spans, from, mid);
+            ParseTask right = new ParseTask(json, spans, mid, to);
+            right.fork();
+            List<Message> messages = left.compute();
+            messages.addAll(right.join());
+            return messages;
+        }
+    }
+}
@@ -0,0 +1,499 @@
+package register2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Leader-follower replication of message changes between QuickChat
+ * processes over TCP.
+ *
+ * The leader numbers every send, store, disregard and delete and keeps the
+ * most recent ones in memory. Each follower connection gets its own shipper
+ * thread that streams entries in batches without waiting for the previous
+ * batch to be acknowledged. A follower that is new, too far behind, or was
+ * following an earlier leader process (different epoch) first receives a
+ * snapshot of the whole state.
+ *
+ * With sync acknowledgement the leader's change only returns once every
+ * caught-up follower has applied it (or the ack timeout passes); with async
+ * it returns straight away. The wait happens after the Message lock is
+ * released, so a slow follower holds up only the thread that made the
+ * change, and a batch waits once, for its last entry.
+ *
+ * Wire format, all big-endian:
+ * <pre>
+ * HELLO    'H' epoch:long lastApplied:long        follower to leader
+ * SNAPSHOT 'S' epoch:long seq:long len:int json   leader to follower
+ * BATCH    'B' count:int (seq:long op:byte len:int payload)*
+ * ACK      'A' seq:long                           follower to leader
+ * </pre>
+ */
+public class MessageReplication {
+
+    public static final String ROLE_PROPERTY = "quickchat.replication.role";
+    public static final String PORT_PROPERTY = "quickchat.replication.port";
+    public static final String LEADER_PROPERTY = "quickchat.replication.leader";
+    public static final String ACK_PROPERTY = "quickchat.replication.ack";
+
+    static final int DEFAULT_PORT = 7070;
+    static final int MAX_BATCH = 512;
+    static final int RETAINED_ENTRIES = Integer.getInteger("quickchat.replication.retained", 10000);
+    static final long ACK_TIMEOUT_MS = Long.getLong("quickchat.replication.ackTimeoutMs", 2000);
+
+    private static final byte HELLO = 'H';
+    private static final byte SNAPSHOT = 'S';
+    private static final byte BATCH = 'B';
+    private static final byte ACK = 'A';
+
+    enum Op { SEND, STORE, DISREGARD, DELETE, PROMOTE }
+
+    static final class Entry {
+        final long seq;
+        final Op op;
+        final String payload;
+
+        Entry(long seq, Op op, String payload) {
+            this.seq = seq;
+            this.op = op;
+            this.payload = payload;
+        }
+    }
+
+    /** Full state shipped to a follower that can't resume from the log. */
+    static final class State {
+        List<Message> sent;
+        List<Message> stored;
+        int totalMessagesSent;
+    }
+
+    private static volatile Leader leader;
+    private static volatile Follower follower;
+
+    /**
+     * Starts a leader or follower from system properties, e.g.
+     * -Dquickchat.replication.role=leader -Dquickchat.replication.port=7070
+     * -Dquickchat.replication.ack=sync, or
+     * -Dquickchat.replication.role=follower -Dquickchat.replication.leader=127.0.0.1:7070
+     */
+    public static void startFromProperties() {
+        String role = System.getProperty(ROLE_PROPERTY);
+        if (role == null) {
+            return;
+        }
+        try {
+            if (role.equals("leader")) {
+                startLeader(Integer.getInteger(PORT_PROPERTY, DEFAULT_PORT),
+                        "sync".equals(System.getProperty(ACK_PROPERTY)));
+            } else if (role.equals("follower")) {
+                String address = System.getProperty(LEADER_PROPERTY, "127.0.0.1:" + DEFAULT_PORT);
+                int colon = address.lastIndexOf(':');
+                startFollower(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+            } else {
+                System.out.println("Unknown replication role: " + role);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Could not start replication: " + e.getMessage());
+        }
+    }
+
+    public static synchronized Leader startLeader(int port, boolean syncAck) throws IOException {
+        if (leader != null) {
+            throw new IllegalStateException("Already replicating as leader");
+        }
+        leader = new Leader(port, syncAck);
+        return leader;
+    }
+
+    public static synchronized Follower startFollower(String host, int port) {
+        if (follower != null) {
+            throw new IllegalStateException("Already replicating as follower");
+        }
+        follower = new Follower(host, port);
+        return follower;
+    }
+
+    public static synchronized void stop() {
+        if (leader != null) {
+            leader.close();
+            leader = null;
+        }
+        if (follower != null) {
+            follower.close();
+            follower = null;
+        }
+    }
+
+    /**
+     * Called by Message after each change, while it holds the Message lock.
+     * Returns the change's sequence number, or 0 when not leading; pass it
+     * to {@link #awaitAcks} once the lock is released.
+     */
+    static long record(Op op, String payload) {
+        Leader current = leader;
+        return current == null ? 0 : current.publish(op, payload);
+    }
+
+    /**
+     * With sync acknowledgement, waits until every caught-up follower has
+     * applied the changes up to seq, or the ack timeout passes. Must not be
+     * called while holding the Message lock, or every reader and writer
+     * waits along with it.
+     */
+    static void awaitAcks(long seq) {
+        Leader current = leader;
+        if (current != null && seq > 0) {
+            current.awaitAcks(seq);
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Accepts followers and ships the change log to them. */
+    public static class Leader implements Closeable {
+        private final ServerSocket server;
+        private final boolean syncAck;
+        private final long epoch = new SecureRandom().nextLong();
+        private final List<Link> links = new CopyOnWriteArrayList<>();
+
+        // Guarded by this
+        private final List<Entry> log = new ArrayList<>();
+        private long lastSeq = 0;
+        private volatile boolean closed = false;
+
+        Leader(int port, boolean syncAck) throws IOException {
+            this.server = new ServerSocket(port);
+            this.syncAck = syncAck;
+            Thread acceptor = new Thread(this::acceptLoop, "replication-accept");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        public int getPort() {
+            return server.getLocalPort();
+        }
+
+        public synchronized long getLastSeq() {
+            return lastSeq;
+        }
+
+        synchronized long publish(Op op, String payload) {
+            long seq = ++lastSeq;
+            log.add(new Entry(seq, op, payload));
+            if (log.size() > RETAINED_ENTRIES * 2) {
+                log.subList(0, log.size() - RETAINED_ENTRIES).clear();
+            }
+            notifyAll();
+            return seq;
+        }
+
+        synchronized void awaitAcks(long seq) {
+            if (!syncAck) {
+                return;
+            }
+            long deadline = System.currentTimeMillis() + ACK_TIMEOUT_MS;
+            while (!closed) {
+                boolean allAcked = true;
+                for (Link link : links) {
+                    if (link.streaming && link.acked < seq) {
+                        allAcked = false;
+                        break;
+                    }
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (allAcked || remaining <= 0) {
+                    return;
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        synchronized void acked() {
+            notifyAll();
+        }
+
+        private void acceptLoop() {
+            while (!closed) {
+                try {
+                    Socket socket = server.accept();
+                    socket.setTcpNoDelay(true);
+                    Link link = new Link(socket);
+                    links.add(link);
+                    Thread shipper = new Thread(link::ship, "replication-ship-" + socket.getPort());
+                    shipper.setDaemon(true);
+                    shipper.start();
+                } catch (IOException e) {
+                    if (!closed) {
+                        System.out.println("Replication accept failed: " + e.getMessage());
+                    }
+                }
+            }
+        }
+
+        /** Index of seq in the retained log, or -1 if it has been trimmed away. */
+        private int indexOf(long seq) {
+            if (log.isEmpty() || seq < log.get(0).seq) {
+                return -1;
+            }
+            return (int) (seq - log.get(0).seq);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            try {
+                server.close();
+            } catch (IOException e) {
+                // already closed
+            }
+            for (Link link : links) {
+                link.close();
+            }
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+
+        /** One connected follower. */
+        private class Link {
+            final Socket socket;
+            volatile boolean streaming = false;
+            volatile long acked = 0;
+
+            Link(Socket socket) {
+                this.socket = socket;
+            }
+
+            void ship() {
+                try {
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    if (in.readByte() != HELLO) {
+                        throw new IOException("Expected HELLO");
+                    }
+                    long followerEpoch = in.readLong();
+                    long followerSeq = in.readLong();
+
+                    long next;
+                    synchronized (Leader.this) {
+                        boolean canResume = followerEpoch == epoch && followerSeq <= lastSeq
+                                && (followerSeq == lastSeq || indexOf(followerSeq + 1) >= 0);
+                        next = canResume ? followerSeq + 1 : -1;
+                    }
+                    if (next < 0) {
+                        next = sendSnapshot(out) + 1;
+                    }
+                    acked = next - 1;
+                    streaming = true;
+
+                    Thread ackReader = new Thread(() -> readAcks(in), "replication-ack-" + socket.getPort());
+                    ackReader.setDaemon(true);
+                    ackReader.start();
+
+                    while (!closed) {
+                        List<Entry> batch = new ArrayList<>();
+                        synchronized (Leader.this) {
+                            while (!closed && lastSeq < next) {
+                                Leader.this.wait();
+                            }
+                            int from = indexOf(next);
+                            if (from < 0) {
+                                throw new IOException("Follower fell behind the retained log");
+                            }
+                            for (int i = from; i < log.size() && batch.size() < MAX_BATCH; i++) {
+                                batch.add(log.get(i));
+                            }
+                        }
+                        if (batch.isEmpty()) {
+                            continue;
+                        }
+                        out.writeByte(BATCH);
+                        out.writeInt(batch.size());
+                        for (Entry entry : batch) {
+                            out.writeLong(entry.seq);
+                            out.writeByte(entry.op.ordinal());
+                            writeBytes(out, entry.payload);
+                        }
+                        out.flush();
+                        next = batch.get(batch.size() - 1).seq + 1;
+                    }
+                } catch (IOException e) {
+                    if (!closed) {
+                        System.out.println("Replication link closed: " + e.getMessage());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    close();
+                }
+            }
+
+            /** Sends the full state and returns the sequence number it reflects. */
+            private long sendSnapshot(DataOutputStream out) throws IOException {
+                String json;
+                long seq;
+                MessageLoader.awaitReady();
+                // Message lock first, as in publish(), so no change slips between state and seq
+                synchronized (Message.class) {
+                    synchronized (Leader.this) {
+                        json = Message.replicaSnapshot();
+                        seq = lastSeq;
+                    }
+                }
+                out.writeByte(SNAPSHOT);
+                out.writeLong(epoch);
+                out.writeLong(seq);
+                writeBytes(out, json);
+                out.flush();
+                return seq;
+            }
+
+            private void readAcks(DataInputStream in) {
+                try {
+                    while (true) {
+                        if (in.readByte() != ACK) {
+                            throw new IOException("Expected ACK");
+                        }
+                        acked = in.readLong();
+                        acked();
+                    }
+                } catch (IOException e) {
+                    close();
+                }
+            }
+
+            void close() {
+                streaming = false;
+                links.remove(this);
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // already closed
+                }
+                acked();
+            }
+        }
+    }
+
+    /** Connects to a leader, applies what it ships and reconnects if the link drops. */
+    public static class Follower implements Closeable {
+        private final String host;
+        private final int port;
+        private volatile boolean closed = false;
+        private volatile Socket socket;
+        private volatile long epoch = 0;
+        private volatile long lastApplied = -1;
+
+        Follower(String host, int port) {
+            this.host = host;
+            this.port = port;
+            Thread thread = new Thread(this::run, "replication-follow");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        public long getLastApplied() {
+            return lastApplied;
+        }
+
+        private void run() {
+            long backoff = 100;
+            while (!closed) {
+                try (Socket s = new Socket(host, port)) {
+                    socket = s;
+                    s.setTcpNoDelay(true);
+                    backoff = 100;
+                    follow(s);
+                } catch (IOException e) {
+                    if (closed) {
+                        return;
+                    }
+                } catch (RuntimeException e) {
+                    System.out.println("Could not apply replicated change: " + e.getMessage());
+                }
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                backoff = Math.min(backoff * 2, 5000);
+            }
+        }
+
+        private void follow(Socket s) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            out.writeByte(HELLO);
+            out.writeLong(epoch);
+            out.writeLong(lastApplied);
+            out.flush();
+            try {
+                while (!closed) {
+                    byte type = in.readByte();
+                    if (type == SNAPSHOT) {
+                        long newEpoch = in.readLong();
+                        long seq = in.readLong();
+                        Message.installReplicaSnapshot(readBytes(in));
+                        epoch = newEpoch;
+                        lastApplied = seq;
+                    } else if (type == BATCH) {
+                        int count = in.readInt();
+                        for (int i = 0; i < count; i++) {
+                            long seq = in.readLong();
+                            Op op = Op.values()[in.readByte()];
+                            Message.applyReplicated(op, readBytes(in));
+                            lastApplied = seq;
+                        }
+                    } else {
+                        throw new IOException("Unexpected frame " + type);
+                    }
+                    out.writeByte(ACK);
+                    out.writeLong(lastApplied);
+                    out.flush();
+                }
+            } catch (EOFException | SocketException e) {
+                // leader went away; run() reconnects
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            Socket s = socket;
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (IOException e) {
+                    // already closed
+                }
+            }
+        }
+    }
+}
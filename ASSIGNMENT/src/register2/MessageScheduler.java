@@ -0,0 +1,208 @@
+package register2;
+
+import com.google.gson.reflect.TypeToken;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Messages waiting to be sent at a later time. Pending sends sit in a
+ * {@link TimingWheel}; a background tick collects everything that has come
+ * due and hands it to {@link Message#sendMessages} as one batch.
+ *
+ * The pending list is kept in scheduledMessages.json, rewritten atomically
+ * on every change, and read back while the message history loads so the
+ * scheduled IDs stay reserved across restarts. A message is only dropped
+ * from the file after it was sent; if the process dies in between, the
+ * copy already in the history is recognised and not sent twice.
+ */
+public class MessageScheduler {
+
+    static final String SCHEDULE_FILE = "scheduledMessages.json";
+    static final long TICK_MILLIS = 1000;
+
+    private static final Type listType = new TypeToken<List<Pending>>() {}.getType();
+    private static final MessageScheduler shared = new MessageScheduler();
+
+    private final TimingWheel<Message> wheel = new TimingWheel<>(TICK_MILLIS, System.currentTimeMillis());
+    private final Map<String, Pending> pending = new LinkedHashMap<>();
+    private boolean loaded;
+    private ScheduledExecutorService ticker;
+
+    private static class Pending {
+        Message message;
+        long dueAt;
+        transient TimingWheel.Timer<Message> timer;
+
+        Pending(Message message, long dueAt) {
+            this.message = message;
+            this.dueAt = dueAt;
+        }
+    }
+
+    public static MessageScheduler shared() {
+        return shared;
+    }
+
+    /** Sends the message at the given time. The message keeps its ID until then. */
+    public synchronized void schedule(Message msg, long dueAt) {
+        Pending p = new Pending(msg, dueAt);
+        Pending old = pending.put(msg.getMessageID(), p);
+        if (old != null) {
+            wheel.cancel(old.timer);
+        }
+        p.timer = wheel.schedule(msg, dueAt);
+        save();
+        startTicker();
+    }
+
+    /**
+     * Cancels a scheduled send and frees its ID. Returns false if nothing is
+     * scheduled under that ID or it is already being sent.
+     */
+    public boolean cancel(String messageID) {
+        MessageLoader.awaitReady();
+        Message msg;
+        synchronized (this) {
+            Pending p = pending.get(messageID);
+            if (p == null || !wheel.cancel(p.timer)) {
+                return false;
+            }
+            pending.remove(messageID);
+            save();
+            msg = p.message;
+        }
+        Message.disregardMessage(msg);
+        return true;
+    }
+
+    /** Scheduled messages, in the order they were scheduled. */
+    public List<Message> pending() {
+        MessageLoader.awaitReady();
+        return pendingMessages();
+    }
+
+    private synchronized List<Message> pendingMessages() {
+        List<Message> messages = new ArrayList<>();
+        for (Pending p : pending.values()) {
+            messages.add(p.message);
+        }
+        return messages;
+    }
+
+    /** When the message is due to be sent, or -1 if it is not scheduled. */
+    public long dueAt(String messageID) {
+        MessageLoader.awaitReady();
+        Pending p;
+        synchronized (this) {
+            p = pending.get(messageID);
+        }
+        return p == null ? -1 : p.dueAt;
+    }
+
+    /** Sends everything that has come due. Runs on the scheduler thread. */
+    void tick() {
+        List<Message> due;
+        synchronized (this) {
+            due = wheel.advance(System.currentTimeMillis());
+        }
+        if (due.isEmpty()) {
+            return;
+        }
+        Message.sendMessages(due);
+        synchronized (this) {
+            for (Message msg : due) {
+                pending.remove(msg.getMessageID());
+            }
+            save();
+        }
+    }
+
+    /**
+     * Loads the pending list on first use and drops entries the history
+     * already has (sent just before a crash) or that clash with a stored ID.
+     * Returns the messages still pending, whose IDs the caller must reserve.
+     * Called by Message while it loads its history.
+     */
+    synchronized List<Message> restore(Map<String, Message> stored) {
+        if (!loaded) {
+            loaded = true;
+            for (Pending p : read()) {
+                pending.put(p.message.getMessageID(), p);
+                p.timer = wheel.schedule(p.message, p.dueAt);
+            }
+        }
+        boolean changed = false;
+        Iterator<Pending> it = pending.values().iterator();
+        while (it.hasNext()) {
+            Pending p = it.next();
+            Message existing = stored.get(p.message.getMessageID());
+            if (existing != null && existing != p.message) {
+                if (existing.getTimestamp() != p.message.getTimestamp()) {
+                    System.out.println("Dropping scheduled message " + p.message.getMessageID() + ": its ID is in use.");
+                }
+                wheel.cancel(p.timer);
+                it.remove();
+                changed = true;
+            }
+        }
+        if (changed) {
+            save();
+        }
+        if (!pending.isEmpty()) {
+            startTicker();
+        }
+        return pendingMessages();
+    }
+
+    private static List<Pending> read() {
+        try {
+            String json = new String(Files.readAllBytes(MessageStore.file(SCHEDULE_FILE)), StandardCharsets.UTF_8);
+            List<Pending> stored = MessageJson.gson().fromJson(json, listType);
+            return stored == null ? new ArrayList<>() : stored;
+        } catch (NoSuchFileException e) {
+            return new ArrayList<>();
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Could not read scheduled messages: " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+
+    private void save() {
+        try {
+            String json = MessageJson.gson().toJson(new ArrayList<>(pending.values()), listType);
+            MessageCheckpoint.writeAtomically(MessageStore.file(SCHEDULE_FILE), json.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized void startTicker() {
+        if (ticker != null) {
+            return;
+        }
+        ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "message-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        ticker.scheduleAtFixedRate(() -> {
+            try {
+                tick();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+}
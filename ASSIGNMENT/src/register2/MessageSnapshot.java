@@ -0,0 +1,58 @@
+package register2;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One consistent version of the message lists. Message publishes a new
+ * version after every change, under its lock, and readers pick up the
+ * current one with a single volatile read, so reports and analytics never
+ * lock and never see a list change underneath them.
+ *
+ * Sent and stored messages are copied on each change; they are bounded by
+ * the pool of message IDs. The disregarded list only ever grows, so it is
+ * kept in {@link MessageColumns}: a version holds a frozen
+ * {@link MessageColumns.Rows} view, whose Messages read their row as they
+ * are asked, and which doesn't see later appends.
+ */
+public final class MessageSnapshot {
+
+    static final MessageSnapshot EMPTY = new MessageSnapshot(0, Collections.emptyList(),
+            Collections.emptyList(), Collections.emptyList(), 0);
+
+    private final long version;
+    private final List<Message> sent;
+    private final List<Message> stored;
+    private final List<Message> disregarded;
+    private final int totalMessagesSent;
+
+    MessageSnapshot(long version, List<Message> sent, List<Message> stored, List<Message> disregarded,
+            int totalMessagesSent) {
+        this.version = version;
+        this.sent = sent;
+        this.stored = stored;
+        this.disregarded = disregarded;
+        this.totalMessagesSent = totalMessagesSent;
+    }
+
+    /** Increases by one with every published change. */
+    public long getVersion() {
+        return version;
+    }
+
+    public List<Message> getSentMessages() {
+        return sent;
+    }
+
+    public List<Message> getStoredMessages() {
+        return stored;
+    }
+
+    public List<Message> getDisregardedMessages() {
+        return disregarded;
+    }
+
+    public int getTotalMessagesSent() {
+        return totalMessagesSent;
+    }
+}
@@ -0,0 +1,96 @@
+package register2;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Where stored messages are kept. Message holds the live lists and tells
+ * the store about each change; the store only has to hand the messages
+ * back, in the same order, the next time the app starts.
+ *
+ * Messages are keyed by ID. Storing a message whose ID is already there
+ * replaces it and moves it to the end, so the order is the order of each
+ * ID's last store. Removing an ID that isn't there does nothing.
+ *
+ * Backends are picked with -Dquickchat.store:
+ *   file    storedMessages.json plus an append-only change log (default)
+ *   memory  nothing outlives the process
+ *   jdbc    an embedded SQL database such as H2 or SQLite
+ * File and JDBC data live in -Dquickchat.store.dir (default the working
+ * directory); -Dquickchat.store.url overrides the JDBC URL. The app's other
+ * files, such as the outbox log, go in the same directory whichever backend
+ * is used; see {@link #file}.
+ * {@link MessageStoreConformance} checks and times any of them.
+ */
+public interface MessageStore extends Closeable {
+
+    String STORE_PROPERTY = "quickchat.store";
+    String DIR_PROPERTY = "quickchat.store.dir";
+    String URL_PROPERTY = "quickchat.store.url";
+
+    /** Short name for messages and reports. */
+    String name();
+
+    /**
+     * Reads every stored message back, oldest first. Returns null when the
+     * store has nothing yet, e.g. on first run.
+     */
+    List<Message> load() throws IOException;
+
+    /**
+     * Stores the messages, replacing any with the same IDs, as one write.
+     * Returns true when the backend would like {@link #replaceAll} called
+     * with the full list soon, e.g. to compact a log.
+     */
+    boolean store(List<Message> messages) throws IOException;
+
+    /** Removes the message with this ID. Returns true like {@link #store}. */
+    boolean remove(String messageID) throws IOException;
+
+    /**
+     * Replaces everything stored with these messages. Returns how many bytes
+     * were written, for the save event; 0 if the backend writes nothing.
+     */
+    long replaceAll(List<Message> messages) throws IOException;
+
+    /** How many bytes the last {@link #load} read, for the load event; 0 if none. */
+    long bytesRead();
+
+    @Override
+    default void close() throws IOException {
+    }
+
+    /** The -Dquickchat.store.dir directory. */
+    static Path directory() {
+        return Paths.get(System.getProperty(DIR_PROPERTY, "."));
+    }
+
+    /**
+     * Where one of the app's own files lives, such as the outbox log or the
+     * compression dictionary: in the store directory, next to the messages
+     * it belongs with.
+     */
+    static Path file(String name) {
+        return directory().resolve(name);
+    }
+
+    /** The backend chosen by the quickchat.store properties. */
+    static MessageStore fromProperties() {
+        String kind = System.getProperty(STORE_PROPERTY, "file");
+        Path dir = directory();
+        switch (kind) {
+            case "memory":
+                return new MemoryMessageStore();
+            case "jdbc":
+                return new JdbcMessageStore(System.getProperty(URL_PROPERTY, JdbcMessageStore.defaultUrl(dir)));
+            case "file":
+                return new FileMessageStore(dir);
+            default:
+                System.out.println("Unknown message store: " + kind + ", using file");
+                return new FileMessageStore(dir);
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package register2;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks that the {@link MessageStore} backends behave alike, then times
+ * them on the traffic Message sends them. Run it with "ant store-conformance"
+ * (it works in build/store-conformance) or directly with
+ * java register2.MessageStoreConformance [memory] [file] [jdbc].
+ *
+ * Conformance: each backend starts empty and goes through store, upsert,
+ * remove, batch, replace-all and awkward contents, and is reopened after
+ * each step so only what was really persisted counts. Then a long random
+ * run of changes is compared against a plain map, calling replaceAll
+ * whenever the backend asks, as Message does. The memory backend is never
+ * reopened, since nothing of it outlives the process.
+ *
+ * Performance: the same seeded workload for every backend. Single stores
+ * and removes within the 10-ID pool, batches of 10 like a broadcast, and
+ * full rewrites when the backend asks for them, then a load from a freshly
+ * opened store. Prints p50/p99/max latency per operation and changes
+ * per second.
+ *
+ * Settings are system properties, all optional:
+ *   quickchat.conformance.ops    operations in the timed run, default 20000
+ *   quickchat.conformance.seed   random seed, default 42
+ * The jdbc backend needs a driver on the class path. It uses
+ * quickchat.store.url if set, emptying its table first, or else H2 in the
+ * scratch directory.
+ */
+public class MessageStoreConformance {
+
+    static final String[] ALL = {"memory", "file", "jdbc"};
+
+    private static final String[] WORDS = {
+        "hi", "hello", "ok", "thanks", "see", "you", "tomorrow", "meeting", "at", "the", "office",
+        "call", "me", "when", "can", "running", "late", "lunch", "today", "please", "send", "report"
+    };
+
+    private final String backend;
+    private final Path dir;
+    private MessageStore memory;
+    private MessageStore store;
+    private int checks;
+    private long runNanos;
+    private final List<String> failures = new ArrayList<>();
+
+    MessageStoreConformance(String backend, Path dir) {
+        this.backend = backend;
+        this.dir = dir;
+    }
+
+    private MessageStore open() {
+        switch (backend) {
+            case "memory":
+                if (memory == null) {
+                    memory = new MemoryMessageStore();
+                }
+                return memory;
+            case "file":
+                return new FileMessageStore(dir);
+            case "jdbc":
+                return new JdbcMessageStore(System.getProperty(MessageStore.URL_PROPERTY, JdbcMessageStore.defaultUrl(dir)));
+            default:
+                throw new IllegalArgumentException("Unknown message store: " + backend);
+        }
+    }
+
+    // Closes and opens the store again, so the next load reads what was persisted
+    private void reopen() throws IOException {
+        store.close();
+        store = open();
+    }
+
+    private void check(boolean ok, String what) {
+        checks++;
+        if (!ok) {
+            failures.add(what);
+        }
+    }
+
+    private void expect(String step, Message... expected) throws IOException {
+        reopen();
+        List<Message> loaded = store.load();
+        List<String> actual = new ArrayList<>();
+        if (loaded != null) {
+            for (Message m : loaded) {
+                actual.add(fields(m));
+            }
+        }
+        List<String> wanted = new ArrayList<>();
+        for (Message m : expected) {
+            wanted.add(fields(m));
+        }
+        check(actual.equals(wanted), step + ": expected " + wanted + " but loaded " + actual);
+    }
+
+    private static String fields(Message m) {
+        return m.getMessageID() + "|" + m.getSender() + "|" + m.getRecipient() + "|" + m.getContent() + "|" + m.getTimestamp();
+    }
+
+    private static Message message(String id, String content) {
+        return new Message("+27831234567", "+27830000" + String.format("%03d", Integer.parseInt(id)), content, id, 1000 + Integer.parseInt(id));
+    }
+
+    /** Runs every check; failures are collected, not thrown. */
+    void conformance(long seed) throws IOException {
+        store = open();
+        store.replaceAll(new ArrayList<>());
+        store.close();
+        store = open();
+
+        List<Message> fresh = store.load();
+        check(fresh == null || fresh.isEmpty(), "empty store loaded " + fresh);
+
+        Message m1 = message("1", "first");
+        store.store(Arrays.asList(m1));
+        expect("store one", m1);
+
+        Message m2 = message("2", "second");
+        Message m3 = message("3", "third");
+        Message m1b = new Message(m1.getSender(), m1.getRecipient(), "first, edited", "1", 5000);
+        store.store(Arrays.asList(m2));
+        store.store(Arrays.asList(m3));
+        store.store(Arrays.asList(m1b));
+        expect("upsert moves to the end", m2, m3, m1b);
+
+        store.remove("2");
+        store.remove("9");
+        expect("remove", m3, m1b);
+
+        Message m4 = message("4", "fourth");
+        Message m5 = message("5", "fifth");
+        Message m4b = new Message(m4.getSender(), m4.getRecipient(), "fourth, edited", "4", 6000);
+        store.store(Arrays.asList(m4, m5, m4b));
+        expect("batch, last write wins", m3, m1b, m5, m4b);
+
+        Message m6 = message("6", "sixth");
+        Message m7 = message("7", "seventh");
+        store.replaceAll(Arrays.asList(m6, m7));
+        expect("replace all", m6, m7);
+
+        StringBuilder longest = new StringBuilder();
+        while (longest.length() < 250) {
+            longest.append("long ");
+        }
+        Message[] awkward = {
+            message("1", "quotes \" and 'apostrophes'"),
+            message("2", "back\\slash and {\"json\": [1]}"),
+            message("3", "line one\nline two\r\n\ttabbed"),
+            message("4", "unicode: caf\u00e9 \u4f60\u597d \ud83d\ude00"),
+            message("5", longest.substring(0, 250)),
+            message("6", ""),
+        };
+        store.replaceAll(new ArrayList<>());
+        store.store(Arrays.asList(awkward));
+        expect("awkward contents", awkward);
+
+        randomRun(new Random(seed), 2000);
+
+        store.replaceAll(new ArrayList<>());
+        reopen();
+        List<Message> emptied = store.load();
+        check(emptied == null || emptied.isEmpty(), "emptied store loaded " + emptied);
+        store.close();
+    }
+
+    // Random changes checked against a map, reopening every so often
+    private void randomRun(Random random, int ops) throws IOException {
+        Map<String, Message> model = new LinkedHashMap<>();
+        store.replaceAll(new ArrayList<>());
+        for (int i = 1; i <= ops; i++) {
+            List<Message> batch = nextChange(random, i);
+            boolean rewrite;
+            if (batch == null) {
+                String id = String.valueOf(1 + random.nextInt(10));
+                model.remove(id);
+                rewrite = store.remove(id);
+            } else {
+                for (Message m : batch) {
+                    model.remove(m.getMessageID());
+                    model.put(m.getMessageID(), m);
+                }
+                rewrite = store.store(batch);
+            }
+            if (rewrite) {
+                store.replaceAll(new ArrayList<>(model.values()));
+            }
+            if (i % 250 == 0) {
+                expect("random run, op " + i, model.values().toArray(new Message[0]));
+            }
+        }
+    }
+
+    // A single store, a batch of 10 or (null) a remove, roughly 60/15/25
+    private static List<Message> nextChange(Random random, long stamp) {
+        int roll = random.nextInt(100);
+        if (roll < 25) {
+            return null;
+        }
+        int count = roll < 40 ? 10 : 1;
+        List<Message> batch = new ArrayList<>(count);
+        int first = random.nextInt(10);
+        for (int i = 0; i < count; i++) {
+            String id = String.valueOf(1 + (first + i) % 10);
+            batch.add(new Message("+27831234567", "+2783000" + String.format("%04d", random.nextInt(10000)),
+                    body(random), id, stamp));
+        }
+        return batch;
+    }
+
+    private static String body(Random random) {
+        StringBuilder text = new StringBuilder();
+        int words = 1 + random.nextInt(30);
+        for (int i = 0; i < words; i++) {
+            text.append(i == 0 ? "" : " ").append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return text.toString();
+    }
+
+    /** Times the workload; returns latency histograms for store, batch, remove, rewrite and load. */
+    Map<String, SoakTest.Histogram> performance(long seed, int ops) throws IOException {
+        Map<String, SoakTest.Histogram> timings = new LinkedHashMap<>();
+        for (String op : new String[] {"store", "batch", "remove", "rewrite", "load"}) {
+            timings.put(op, new SoakTest.Histogram());
+        }
+        Random random = new Random(seed);
+        Map<String, Message> model = new LinkedHashMap<>();
+        store = open();
+        store.replaceAll(new ArrayList<>());
+        long began = System.nanoTime();
+        for (int i = 1; i <= ops; i++) {
+            List<Message> batch = nextChange(random, i);
+            long start = System.nanoTime();
+            boolean rewrite;
+            String op;
+            if (batch == null) {
+                String id = String.valueOf(1 + random.nextInt(10));
+                rewrite = store.remove(id);
+                model.remove(id);
+                op = "remove";
+            } else {
+                rewrite = store.store(batch);
+                for (Message m : batch) {
+                    model.remove(m.getMessageID());
+                    model.put(m.getMessageID(), m);
+                }
+                op = batch.size() == 1 ? "store" : "batch";
+            }
+            timings.get(op).record((System.nanoTime() - start) / 1000);
+            if (rewrite) {
+                start = System.nanoTime();
+                store.replaceAll(new ArrayList<>(model.values()));
+                timings.get("rewrite").record((System.nanoTime() - start) / 1000);
+            }
+        }
+        runNanos = System.nanoTime() - began;
+        for (int i = 0; i < 20; i++) {
+            store.close();
+            store = open();
+            long start = System.nanoTime();
+            store.load();
+            timings.get("load").record((System.nanoTime() - start) / 1000);
+        }
+        expect("after the timed run", model.values().toArray(new Message[0]));
+        store.close();
+        return timings;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int ops = Integer.getInteger("quickchat.conformance.ops", 20000);
+        long seed = Long.getLong("quickchat.conformance.seed", 42);
+        String[] backends = args.length > 0 ? args : ALL;
+        Path root = Files.createDirectories(Paths.get("store-conformance").toAbsolutePath());
+
+        boolean passed = true;
+        Map<String, MessageStoreConformance> runs = new LinkedHashMap<>();
+        Map<String, Map<String, SoakTest.Histogram>> results = new LinkedHashMap<>();
+        for (String backend : backends) {
+            Path dir = Files.createDirectories(root.resolve(backend));
+            for (String file : new String[] {MessageCheckpoint.SNAPSHOT_FILE, MessageCheckpoint.DELTA_FILE}) {
+                Files.deleteIfExists(dir.resolve(file));
+                Files.deleteIfExists(dir.resolve(file + MessageCheckpoint.PREVIOUS_SUFFIX));
+            }
+            Files.deleteIfExists(dir.resolve(MessageCheckpoint.CHECKSUM_FILE));
+            MessageStoreConformance run = new MessageStoreConformance(backend, dir);
+            try {
+                run.conformance(seed);
+                results.put(backend, run.performance(seed, ops));
+            } catch (IOException e) {
+                System.out.println(backend + ": could not run: " + e.getMessage());
+                passed = false;
+                continue;
+            }
+            runs.put(backend, run);
+            System.out.println(backend + ": " + (run.checks - run.failures.size()) + "/" + run.checks + " checks passed");
+            for (String failure : run.failures) {
+                System.out.println("  FAIL " + failure);
+            }
+            passed &= run.failures.isEmpty();
+        }
+
+        System.out.println();
+        System.out.printf("%-8s %-8s %8s %9s %9s %9s%n", "store", "op", "count", "p50 us", "p99 us", "max us");
+        for (Map.Entry<String, Map<String, SoakTest.Histogram>> result : results.entrySet()) {
+            for (Map.Entry<String, SoakTest.Histogram> op : result.getValue().entrySet()) {
+                SoakTest.Histogram h = op.getValue();
+                if (h.count() > 0) {
+                    System.out.printf(Locale.ROOT, "%-8s %-8s %8d %9d %9d %9d%n", result.getKey(), op.getKey(), h.count(),
+                            h.percentile(50), h.percentile(99), h.max());
+                }
+            }
+        }
+        System.out.println();
+        for (Map.Entry<String, MessageStoreConformance> run : runs.entrySet()) {
+            System.out.printf(Locale.ROOT, "%-8s %10.0f changes/s, rewrites included%n", run.getKey(),
+                    ops / (run.getValue().runNanos / 1e9));
+        }
+        System.exit(passed ? 0 : 1);
+    }
+}
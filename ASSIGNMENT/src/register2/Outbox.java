@@ -0,0 +1,243 @@
+package register2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends stored messages in bulk, on demand or every few minutes.
+ *
+ * Messages go through validate, dedupe, assign, persist and deliver in
+ * batches. Two threads share the work: while one batch is being persisted
+ * and delivered, the next is already being validated. Each message gets an
+ * idempotency key (its ID and creation time), and a batch's keys are
+ * appended to outbox.log with one fsync before any of it is delivered. That
+ * write is the point a message counts as sent: after a crash, the keys in
+ * the log mark those messages as sent again instead of sending them twice.
+ */
+public class Outbox {
+
+    public static final String FLUSH_EVERY_PROPERTY = "quickchat.outbox.flushEveryMinutes";
+
+    static final String LOG_FILE = "outbox.log";
+    static final int BATCH_SIZE = 256;
+
+    private static final Set<String> sentKeys = new HashSet<>();
+    private static boolean loaded;
+    private static ScheduledExecutorService flusher;
+
+    /** Progress callback, called after each batch is delivered. */
+    public interface Progress {
+        void update(int processed, int total);
+    }
+
+    /** What a flush did with each message it looked at. */
+    public static class Result {
+        public final List<Message> sent = new ArrayList<>();
+        public int invalid;
+        public int duplicates;
+
+        @Override
+        public String toString() {
+            return sent.size() + " sent, " + duplicates + " already sent, " + invalid + " invalid";
+        }
+    }
+
+    private static class Batch {
+        final List<Message> messages = new ArrayList<>();
+        final List<String> keys = new ArrayList<>();
+        int examined;
+        int invalid;
+        int duplicates;
+    }
+
+    private static final Batch END = new Batch();
+
+    /** The message's idempotency key: its ID plus creation time, since IDs are reused. */
+    static String keyFor(Message msg) {
+        return msg.getMessageID() + "-" + msg.getTimestamp();
+    }
+
+    /** Sends every stored message that hasn't been sent. */
+    public static Result flush(Progress progress) {
+        return flush(Message.getUnsentStoredMessages(), progress);
+    }
+
+    static synchronized Result flush(List<Message> pending, Progress progress) {
+        load();
+        Result result = new Result();
+        int total = pending.size();
+        if (total == 0) {
+            return result;
+        }
+
+        // Validate, dedupe and assign on a second thread, one batch ahead of persist and deliver
+        BlockingQueue<Batch> ready = new ArrayBlockingQueue<>(2);
+        Set<String> seen = new HashSet<>(sentKeys);
+        Thread prepare = new Thread(() -> {
+            try {
+                for (int from = 0; from < total; from += BATCH_SIZE) {
+                    ready.put(prepare(pending.subList(from, Math.min(total, from + BATCH_SIZE)), seen));
+                }
+                ready.put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "outbox-prepare");
+        prepare.setDaemon(true);
+        prepare.start();
+
+        int processed = 0;
+        try {
+            for (Batch batch = ready.take(); batch != END; batch = ready.take()) {
+                result.invalid += batch.invalid;
+                result.duplicates += batch.duplicates;
+                if (!batch.messages.isEmpty()) {
+                    append(batch.keys);
+                    sentKeys.addAll(batch.keys);
+                    result.sent.addAll(Message.promoteStored(batch.messages));
+                }
+                processed += batch.examined;
+                if (progress != null) {
+                    progress.update(processed, total);
+                }
+            }
+        } catch (IOException e) {
+            // Nothing from this batch on was logged or delivered; a later flush retries it
+            e.printStackTrace();
+            prepare.interrupt();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            prepare.interrupt();
+        }
+        return result;
+    }
+
+    private static Batch prepare(List<Message> messages, Set<String> seen) {
+        Batch batch = new Batch();
+        for (Message msg : messages) {
+            batch.examined++;
+            // validate
+            if (!Message.checkRecipientCell(msg.getRecipient()) || !Message.checkMessageContentLength(msg.getContent())) {
+                batch.invalid++;
+                continue;
+            }
+            // dedupe
+            String key = keyFor(msg);
+            if (!seen.add(key)) {
+                batch.duplicates++;
+                continue;
+            }
+            // assign
+            batch.messages.add(msg);
+            batch.keys.add(key);
+        }
+        return batch;
+    }
+
+    /**
+     * Reads the log and returns the stored messages it marks as sent. Keys of
+     * messages that are gone are dropped from the log. Called by Message
+     * while it loads its history.
+     */
+    static synchronized List<Message> restore(List<Message> stored) {
+        load();
+        List<Message> sent = new ArrayList<>();
+        Set<String> live = new HashSet<>();
+        for (Message msg : stored) {
+            String key = keyFor(msg);
+            if (sentKeys.contains(key)) {
+                sent.add(msg);
+                live.add(key);
+            }
+        }
+        if (live.size() < sentKeys.size()) {
+            sentKeys.retainAll(live);
+            try {
+                MessageCheckpoint.writeAtomically(MessageStore.file(LOG_FILE), lines(sentKeys).getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return sent;
+    }
+
+    private static void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        try {
+            String log = new String(Files.readAllBytes(MessageStore.file(LOG_FILE)), StandardCharsets.UTF_8);
+            // A last line without its newline was torn by a crash and never counted
+            int end = log.lastIndexOf('\n') + 1;
+            for (String key : log.substring(0, end).split("\n")) {
+                if (!key.isEmpty()) {
+                    sentKeys.add(key);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // Nothing flushed yet
+        } catch (IOException e) {
+            System.out.println("Could not read the outbox log: " + e.getMessage());
+        }
+    }
+
+    private static void append(List<String> keys) throws IOException {
+        Path log = MessageStore.file(LOG_FILE).toAbsolutePath();
+        Files.createDirectories(log.getParent());
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(lines(keys).getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+    }
+
+    private static String lines(Iterable<String> keys) {
+        StringBuilder text = new StringBuilder();
+        for (String key : keys) {
+            text.append(key).append('\n');
+        }
+        return text.toString();
+    }
+
+    /** Flushes every N minutes when -Dquickchat.outbox.flushEveryMinutes=N is set. */
+    public static synchronized void startFromProperties() {
+        long minutes = Long.getLong(FLUSH_EVERY_PROPERTY, 0);
+        if (minutes <= 0 || flusher != null) {
+            return;
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "outbox-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(() -> {
+            try {
+                Result result = flush(null);
+                if (!result.sent.isEmpty()) {
+                    System.out.println("Outbox: " + result);
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }, minutes, minutes, TimeUnit.MINUTES);
+    }
+}
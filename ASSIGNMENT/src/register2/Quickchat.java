@@ -3,14 +3,20 @@
  * Click nbfs://nbhost/SystemFileSystem/Templates/GUIForms/JFrame.java to edit this template
  */
 package register2;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.swing.JLabel;
 import javax.swing.JButton;
 import javax.swing.JOptionPane;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingUtilities;
 import register2.Message;
 
+import userdatastore.SessionRegistry;
 import userdatastore.userdatastore;
 /**
  *
@@ -25,10 +31,12 @@ public class Quickchat extends javax.swing.JFrame {
      * Creates new form Quickchat
      */
     private String loggedInUsername;
+    private String sessionToken;
     
     
-    public Quickchat(String username) {
-        this.loggedInUsername=username;
+    public Quickchat(String sessionToken) {
+        this.sessionToken=sessionToken;
+        this.loggedInUsername=SessionRegistry.shared().validate(sessionToken);
         initComponents();
         String firstname=userdatastore.userFirstname.get(loggedInUsername);
         String lastname=userdatastore.userLastname.get(loggedInUsername);
@@ -103,11 +111,16 @@ public class Quickchat extends javax.swing.JFrame {
 
     private void btnQuickChatMenuActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_btnQuickChatMenuActionPerformed
         // TODO add your handling code here:
+        if (!checkSession()) {
+            return;
+        }
         String input = JOptionPane.showInputDialog(this,
     "Please enter an option number:\n" +
     "1. Send Message\n" +
     "2. Show recently sent messages\n" +
-    "3. Quit"
+    "3. Quit\n" +
+    "4. Broadcast Message\n" +
+    "5. Send All Stored Messages"
 );
 
 if (input == null) {
@@ -133,15 +146,105 @@ try {
     case 3:  // Quit
         int confirm = JOptionPane.showConfirmDialog(this, "Are you sure you want to quit Quickchat?", "Confirm Quit", JOptionPane.YES_NO_OPTION);
         if (confirm == JOptionPane.YES_OPTION) {
+            SessionRegistry.shared().logout(sessionToken);
             this.dispose();
             System.exit(0);
         }
         break;
+    case 4:
+        broadcastFunction();
+        break;
+    case 5:
+        flushOutboxFunction();
+        break;
     default:
         
-        JOptionPane.showMessageDialog(this, "Invalid option selected. Please enter 1, 2, or 3.");
+        JOptionPane.showMessageDialog(this, "Invalid option selected. Please enter a number from 1 to 5.");
 }
     }
+
+    // Offers the best matching contacts when what was typed isn't a full number yet
+    private String completeRecipient(String typed) {
+        if (Message.checkRecipientCell(typed)) {
+            return typed;
+        }
+        List<RecipientIndex.Suggestion> suggestions = RecipientIndex.shared().complete(typed, 5);
+        if (suggestions.isEmpty()) {
+            return typed;
+        }
+        Object picked = JOptionPane.showInputDialog(this, "Did you mean:", "Recipient",
+                JOptionPane.QUESTION_MESSAGE, null, suggestions.toArray(), suggestions.get(0));
+        return picked == null ? typed : ((RecipientIndex.Suggestion) picked).recipient;
+    }
+
+    // Sends stored messages on a background thread so the progress bar can paint
+    private void flushOutboxFunction() {
+        ProgressMonitor monitor = new ProgressMonitor(this, "Sending stored messages...", null, 0, 100);
+        new Thread(() -> {
+            Outbox.Result result = Outbox.flush((processed, total) -> SwingUtilities.invokeLater(() -> {
+                monitor.setMaximum(total);
+                monitor.setProgress(processed);
+            }));
+            SwingUtilities.invokeLater(() -> {
+                monitor.close();
+                JOptionPane.showMessageDialog(this, "Stored messages: " + result + ".", "Outbox", JOptionPane.INFORMATION_MESSAGE);
+            });
+        }, "outbox-flush").start();
+    }
+
+    private void broadcastFunction() {
+        String groups = RecipientGroups.names().isEmpty() ? "" : "\nSaved groups: " + String.join(", ", RecipientGroups.names());
+        String target = JOptionPane.showInputDialog(this, "Enter recipient cell numbers separated by commas, or a group name:" + groups);
+        if (target == null || target.trim().isEmpty()) {
+            JOptionPane.showMessageDialog(this, "Broadcast cancelled.");
+            return;
+        }
+        target = target.trim();
+        List<String> recipients = RecipientGroups.get(target);
+        boolean fromGroup = recipients != null;
+        if (!fromGroup) {
+            recipients = new ArrayList<>();
+            for (String r : target.split("[,;\\s]+")) {
+                if (!r.isEmpty()) {
+                    recipients.add(r);
+                }
+            }
+        }
+
+        String messageContent = JOptionPane.showInputDialog(this, "Enter message content (max 250 characters):");
+        if (messageContent == null || messageContent.trim().isEmpty()) {
+            JOptionPane.showMessageDialog(this, "Broadcast cancelled.");
+            return;
+        }
+
+        List<Message> sent;
+        try {
+            sent = Message.broadcast(loggedInUsername, recipients, messageContent.trim());
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            JOptionPane.showMessageDialog(this, e.getMessage(), "Broadcast Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        Set<String> reached = new LinkedHashSet<>();
+        for (Message m : sent) {
+            reached.add(m.getRecipient());
+        }
+        StringBuilder summary = new StringBuilder("Message sent to " + sent.size() + " recipient(s).");
+        for (String r : recipients) {
+            if (!reached.contains(r)) {
+                summary.append("\nSkipped invalid number: ").append(r);
+            }
+        }
+        JOptionPane.showMessageDialog(this, summary.toString());
+
+        if (!fromGroup && sent.size() > 1) {
+            String name = JOptionPane.showInputDialog(this, "Save these recipients as a group? Enter a name, or cancel:");
+            if (name != null && !name.trim().isEmpty()) {
+                RecipientGroups.define(name, new ArrayList<>(reached));
+            }
+        }
+    }
+
         private void sendMessagesFunction() {
         //
        String numMessagesStr = JOptionPane.showInputDialog(this, "How many messages do you wish to send?");
@@ -165,12 +268,12 @@ try {
     for (int i = 0; i < numberOfMessages; i++) {
         JOptionPane.showMessageDialog(this, "Entering Message " + (i + 1) + " of " + numberOfMessages);
 
-        String recipient = JOptionPane.showInputDialog(this, "Enter recipient's cell number (e.g., +27123456789):");
+        String recipient = JOptionPane.showInputDialog(this, "Enter recipient's cell number (e.g., +27123456789), or the start of a number or username:");
         if (recipient == null || recipient.trim().isEmpty()) {
             JOptionPane.showMessageDialog(this, "Recipient input cancelled or empty. Skipping to next message.", "Warning", JOptionPane.WARNING_MESSAGE);
             continue;
         }
-        recipient = recipient.trim();
+        recipient = completeRecipient(recipient.trim());
 
         if (!Message.checkRecipientCell(recipient)) {
             JOptionPane.showMessageDialog(this, "Recipient cell number incorrect: must be '+27' followed by 9 digits (e.g., +27123456789).", "Input Error", JOptionPane.ERROR_MESSAGE);
@@ -193,7 +296,7 @@ try {
         Message currentMessage = new Message(loggedInUsername, recipient, messageContent);
 
         // Ask user what to do with the message
-        Object[] messageOptions = {"Send Message", "Disregard Message", "Store Message"};
+        Object[] messageOptions = {"Send Message", "Disregard Message", "Store Message", "Send Later"};
         int userChoice = JOptionPane.showOptionDialog(
                 this,
                 "Choose what you want to do with this message:\n" + currentMessage.toString(),
@@ -217,6 +320,22 @@ try {
                 Message.storeMessage(currentMessage);
                 JOptionPane.showMessageDialog(this, "Message stored for later.", "Info", JOptionPane.INFORMATION_MESSAGE);
                 break;
+            case 3: // Send later
+                String delay = JOptionPane.showInputDialog(this, "Send in how many minutes?");
+                int minutes;
+                try {
+                    minutes = delay == null ? -1 : Integer.parseInt(delay.trim());
+                } catch (NumberFormatException e) {
+                    minutes = -1;
+                }
+                if (minutes <= 0) {
+                    Message.disregardMessage(currentMessage);
+                    JOptionPane.showMessageDialog(this, "Invalid delay. Message disregarded.", "Input Error", JOptionPane.ERROR_MESSAGE);
+                    break;
+                }
+                MessageScheduler.shared().schedule(currentMessage, System.currentTimeMillis() + minutes * 60_000L);
+                JOptionPane.showMessageDialog(this, "Message scheduled to send in " + minutes + " minute(s).", "Info", JOptionPane.INFORMATION_MESSAGE);
+                break;
             default:
                 JOptionPane.showMessageDialog(this, "No action taken on the message.", "Info", JOptionPane.INFORMATION_MESSAGE);
                 break;
@@ -269,7 +388,8 @@ try {
                                            case '4':
                 String rec = JOptionPane.showInputDialog(this, "Enter recipient cell number:");
                 if (rec != null) {
-                    List<Message> messages = Message.searchMessagesByRecipient(rec.trim());
+                    rec = completeRecipient(rec.trim());
+                    List<Message> messages = Message.searchMessagesByRecipient(rec);
                     if (!messages.isEmpty()) {
                         StringBuilder sb = new StringBuilder();
                         for (Message m : messages) {
@@ -311,6 +431,19 @@ try {
                           }
     }//GEN-LAST:event_btnQuickChatMenuActionPerformed
 
+    // Every menu action goes through the session so an expired login can't keep sending
+    private boolean checkSession() {
+        String username = SessionRegistry.shared().validate(sessionToken);
+        if (username == null) {
+            JOptionPane.showMessageDialog(this, "Your session has expired. Please log in again.", "Session Expired", JOptionPane.WARNING_MESSAGE);
+            this.dispose();
+            new Login().setVisible(true);
+            return false;
+        }
+        loggedInUsername = username;
+        return true;
+    }
+
     /**
      * @param args the command line arguments
      */
@@ -338,13 +471,8 @@ try {
         }
         //</editor-fold>
 
-        /* Create and display the form */
-        java.awt.EventQueue.invokeLater(new Runnable() {
-            public void run() {
-                String username;
-                new Quickchat("Quickchat ").setVisible(true);
-            }
-        });
+        /* A chat window needs a session, so start at the login form */
+        Login.main(args);
     }
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
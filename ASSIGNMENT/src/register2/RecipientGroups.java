@@ -0,0 +1,84 @@
+package register2;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Named recipient lists for broadcasts, kept in recipientGroups.json. The
+ * file is read on first use and rewritten atomically on every change.
+ */
+public class RecipientGroups {
+
+    static final String GROUPS_FILE = "recipientGroups.json";
+
+    private static final Type mapType = new TypeToken<LinkedHashMap<String, List<String>>>() {}.getType();
+    private static final Gson gson = new Gson();
+
+    private static Map<String, List<String>> groups;
+
+    /** Recipients of the named group, or null if there is no such group. */
+    public static synchronized List<String> get(String name) {
+        List<String> members = load().get(name);
+        return members == null ? null : new ArrayList<>(members);
+    }
+
+    public static synchronized Set<String> names() {
+        return new TreeSet<>(load().keySet());
+    }
+
+    /** Creates or replaces a group. */
+    public static synchronized void define(String name, List<String> recipients) {
+        if (name == null || name.trim().isEmpty()) {
+            throw new IllegalArgumentException("Group name is required");
+        }
+        load().put(name.trim(), new ArrayList<>(recipients));
+        save();
+    }
+
+    public static synchronized boolean remove(String name) {
+        boolean removed = load().remove(name) != null;
+        if (removed) {
+            save();
+        }
+        return removed;
+    }
+
+    private static Map<String, List<String>> load() {
+        if (groups == null) {
+            groups = new LinkedHashMap<>();
+            try {
+                String json = new String(Files.readAllBytes(MessageStore.file(GROUPS_FILE)), StandardCharsets.UTF_8);
+                Map<String, List<String>> stored = gson.fromJson(json, mapType);
+                if (stored != null) {
+                    groups.putAll(stored);
+                }
+            } catch (NoSuchFileException e) {
+                // No groups saved yet
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Could not read recipient groups: " + e.getMessage());
+            }
+        }
+        return groups;
+    }
+
+    private static void save() {
+        try {
+            MessageCheckpoint.writeAtomically(MessageStore.file(GROUPS_FILE),
+                    gson.toJson(groups, mapType).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package register2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import userdatastore.userdatastore;
+
+/**
+ * Typeahead over recipient numbers and usernames, ranked by how often and
+ * how recently each one was messaged.
+ *
+ * Keys live in a character trie. Every node caches the best {@link #MAX_K}
+ * entries below it, with their scores in an array beside them, so a lookup
+ * is a walk down the prefix and a copy of that list, and a touch compares
+ * scores without visiting each entry. Scores only ever go up (recent
+ * contacts add more than old ones, see {@link #weight}), so an entry can
+ * only enter a node's list when its own score rises, and each touch just
+ * refreshes the lists along its path.
+ *
+ * Messages are sent to numbers, so a touch is recorded against the number
+ * and credited to every username registered with it too; a username added
+ * for a number already messaged starts with the number's score. Typing
+ * either finds the contact, ranked by the same history.
+ */
+public class RecipientIndex {
+
+    public static final int MAX_K = 10;
+
+    /** Contact weight doubles every week, so recent contacts outrank old ones. */
+    static final double HALF_LIFE_MILLIS = 7 * 24 * 60 * 60 * 1000.0;
+
+    private static volatile RecipientIndex shared;
+
+    private final long epochMillis;
+    private final Node root = new Node();
+    private final Map<String, Entry> entries = new HashMap<>();
+    // Username entries by the number they resolve to, to credit them when it is messaged
+    private final Map<String, List<Entry>> namesByRecipient = new HashMap<>();
+
+    /** A completion: what was matched and the number it resolves to. */
+    public static class Suggestion {
+        public final String key;
+        public final String recipient;
+
+        Suggestion(String key, String recipient) {
+            this.key = key;
+            this.recipient = recipient;
+        }
+
+        @Override
+        public String toString() {
+            return key.equals(recipient) ? recipient : key + " (" + recipient + ")";
+        }
+    }
+
+    private static class Entry {
+        final String key;
+        String recipient;
+        double score;
+
+        Entry(String key, String recipient) {
+            this.key = key;
+            this.recipient = recipient;
+        }
+    }
+
+    private static class Node {
+        // Children by the next character; a handful at most, so a scan beats hashing
+        char[] labels = new char[0];
+        Node[] children = new Node[0];
+        // Best entries below this node, highest score first, and their scores;
+        // an entry is only ever in the nodes on its own path, and each change to
+        // its score is offered to all of them, so the copies stay exact
+        final Entry[] top = new Entry[MAX_K];
+        final double[] scores = new double[MAX_K];
+        int size;
+
+        Node child(char c) {
+            for (int i = 0; i < labels.length; i++) {
+                if (labels[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node addChild(char c) {
+            Node child = child(c);
+            if (child == null) {
+                child = new Node();
+                labels = Arrays.copyOf(labels, labels.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                labels[labels.length - 1] = c;
+                children[children.length - 1] = child;
+            }
+            return child;
+        }
+    }
+
+    public RecipientIndex(long epochMillis) {
+        this.epochMillis = epochMillis;
+    }
+
+    /** Index of registered usernames and everyone already messaged. */
+    public static RecipientIndex shared() {
+        RecipientIndex index = shared;
+        if (index == null) {
+            synchronized (RecipientIndex.class) {
+                index = shared;
+                if (index == null) {
+                    index = new RecipientIndex(System.currentTimeMillis());
+                    for (Map.Entry<String, String> user : userdatastore.userphoneno.entrySet()) {
+                        index.addName(user.getKey(), user.getValue());
+                    }
+                    for (Message m : Message.getSentMessages()) {
+                        index.touch(m.getRecipient(), m.getRecipient(), m.getTimestamp());
+                    }
+                    shared = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    /** Counts a sent message, if the index has been built; otherwise the build will pick it up. */
+    static void recordSend(Message msg) {
+        RecipientIndex index = shared;
+        if (index != null) {
+            index.touch(msg.getRecipient(), msg.getRecipient(), msg.getTimestamp());
+        }
+    }
+
+    /** Makes a newly registered username completable, if the index has been built. */
+    static void recordUser(String username, String phone) {
+        RecipientIndex index = shared;
+        if (index != null) {
+            index.addName(username, phone);
+        }
+    }
+
+    double weight(long when) {
+        return Math.pow(2, (when - epochMillis) / HALF_LIFE_MILLIS);
+    }
+
+    /** Makes a key completable without counting it as a contact. */
+    public synchronized void addName(String key, String recipient) {
+        if (key == null || recipient == null) {
+            return;
+        }
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(key, recipient);
+            entries.put(key, entry);
+            Entry number = entries.get(recipient);
+            if (number != null && number != entry) {
+                entry.score = number.score;
+            }
+            linkName(entry);
+            refresh(entry);
+        } else if (!entry.recipient.equals(recipient)) {
+            unlinkName(entry);
+            entry.recipient = recipient;
+            linkName(entry);
+        }
+    }
+
+    private void linkName(Entry entry) {
+        if (!entry.key.equals(entry.recipient)) {
+            namesByRecipient.computeIfAbsent(entry.recipient, r -> new ArrayList<>(1)).add(entry);
+        }
+    }
+
+    private void unlinkName(Entry entry) {
+        List<Entry> names = namesByRecipient.get(entry.recipient);
+        if (names != null) {
+            names.remove(entry);
+            if (names.isEmpty()) {
+                namesByRecipient.remove(entry.recipient);
+            }
+        }
+    }
+
+    /** Records a contact with the recipient at the given time, for the key and the recipient's usernames. */
+    public synchronized void touch(String key, String recipient, long when) {
+        if (key == null || recipient == null) {
+            return;
+        }
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(key, recipient);
+            entries.put(key, entry);
+            linkName(entry);
+        } else if (!entry.recipient.equals(recipient)) {
+            unlinkName(entry);
+            entry.recipient = recipient;
+            linkName(entry);
+        }
+        double weight = weight(when);
+        entry.score += weight;
+        refresh(entry);
+        List<Entry> names = namesByRecipient.get(recipient);
+        if (names != null) {
+            for (Entry name : names) {
+                if (name != entry) {
+                    name.score += weight;
+                    refresh(name);
+                }
+            }
+        }
+    }
+
+    private void refresh(Entry entry) {
+        Node node = root;
+        offer(node, entry);
+        for (int i = 0; i < entry.key.length(); i++) {
+            node = node.addChild(entry.key.charAt(i));
+            offer(node, entry);
+        }
+    }
+
+    // Keeps node.top sorted by score, highest first, at most MAX_K long
+    private static void offer(Node node, Entry entry) {
+        Entry[] top = node.top;
+        double[] scores = node.scores;
+        int at = 0;
+        while (at < node.size && top[at] != entry) {
+            at++;
+        }
+        if (at == node.size && node.size == MAX_K && scores[MAX_K - 1] >= entry.score) {
+            return;
+        }
+        if (at < node.size) {
+            // Take it out; it goes back in at its new score below
+            System.arraycopy(top, at + 1, top, at, node.size - at - 1);
+            System.arraycopy(scores, at + 1, scores, at, node.size - at - 1);
+            node.size--;
+        }
+        int pos = 0;
+        while (pos < node.size && scores[pos] >= entry.score) {
+            pos++;
+        }
+        if (pos == MAX_K) {
+            return;
+        }
+        int moved = Math.min(node.size, MAX_K - 1) - pos;
+        System.arraycopy(top, pos, top, pos + 1, moved);
+        System.arraycopy(scores, pos, scores, pos + 1, moved);
+        top[pos] = entry;
+        scores[pos] = entry.score;
+        node.size = Math.min(node.size + 1, MAX_K);
+    }
+
+    /** Up to k best completions of the prefix, best first. */
+    public synchronized List<Suggestion> complete(String prefix, int k) {
+        List<Suggestion> result = new ArrayList<>();
+        if (prefix == null) {
+            return result;
+        }
+        Node node = root;
+        for (int i = 0; i < prefix.length() && node != null; i++) {
+            node = node.child(prefix.charAt(i));
+        }
+        if (node == null) {
+            return result;
+        }
+        for (int i = 0; i < Math.min(k, node.size); i++) {
+            Entry e = node.top[i];
+            result.add(new Suggestion(e.key, e.recipient));
+        }
+        return result;
+    }
+}
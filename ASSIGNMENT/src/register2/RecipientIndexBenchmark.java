@@ -0,0 +1,150 @@
+package register2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Times RecipientIndex top-k completion against a scan of every key, and
+ * checks they agree. Run it with "ant recipient-index-benchmark" or
+ * directly with java register2.RecipientIndexBenchmark.
+ *
+ * Builds an index of generated users, each a username and a +27 number,
+ * then sends messages over 30 days to numbers picked with a skew, so a few
+ * contacts get most of the traffic as in a real address book. Each send is
+ * a touch, timed. Then random prefixes of usernames and numbers, one to
+ * four characters after the "+27" or first letter, are completed by the
+ * index and, for a sample, by scanning every key with the same scores. It
+ * prints the p50/p99/max latency of a touch and of a completion in ns,
+ * how long the scan takes, and how many completions differed from it.
+ *
+ * Settings are system properties, all optional:
+ *   quickchat.indexbench.users     users in the index, default 100000
+ *   quickchat.indexbench.sends     messages sent, default 1000000
+ *   quickchat.indexbench.queries   completions timed, default 200000
+ *   quickchat.indexbench.checked   of those, also scanned and compared, default 2000
+ *   quickchat.indexbench.k         completions asked for, default 5
+ *   quickchat.indexbench.seed      random seed, default 42
+ */
+public class RecipientIndexBenchmark {
+
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    public static void main(String[] args) {
+        int users = Integer.getInteger("quickchat.indexbench.users", 100000);
+        int sends = Integer.getInteger("quickchat.indexbench.sends", 1000000);
+        int queries = Integer.getInteger("quickchat.indexbench.queries", 200000);
+        int checked = Integer.getInteger("quickchat.indexbench.checked", 2000);
+        int k = Integer.getInteger("quickchat.indexbench.k", 5);
+        long seed = Long.getLong("quickchat.indexbench.seed", 42);
+
+        Random random = new Random(seed);
+        long now = System.currentTimeMillis();
+        RecipientIndex index = new RecipientIndex(now - 30 * DAY_MILLIS);
+        String[] names = new String[users];
+        String[] numbers = new String[users];
+        // What every key's score should be, kept alongside for the scan
+        Map<String, Double> scores = new HashMap<>();
+        Set<String> taken = new HashSet<>();
+        for (int i = 0; i < users; i++) {
+            names[i] = username(random, i);
+            // One user per number, so each send credits exactly one username
+            do {
+                numbers[i] = "+2783" + String.format("%07d", random.nextInt(10000000));
+            } while (!taken.add(numbers[i]));
+            index.addName(names[i], numbers[i]);
+            scores.put(names[i], 0.0);
+        }
+
+        SoakTest.Histogram touches = new SoakTest.Histogram();
+        long began = System.nanoTime();
+        for (int i = 0; i < sends; i++) {
+            // Squaring a uniform pick favours the first users, a rough power law
+            double u = random.nextDouble();
+            int user = (int) (u * u * users);
+            long when = now - 30 * DAY_MILLIS + (long) ((double) i / sends * 30 * DAY_MILLIS);
+            long start = System.nanoTime();
+            index.touch(numbers[user], numbers[user], when);
+            touches.record(System.nanoTime() - start);
+            double weight = index.weight(when);
+            scores.merge(numbers[user], weight, Double::sum);
+            scores.merge(names[user], weight, Double::sum);
+        }
+        long buildMillis = (System.nanoTime() - began) / 1000000;
+
+        SoakTest.Histogram completions = new SoakTest.Histogram();
+        SoakTest.Histogram scans = new SoakTest.Histogram();
+        int differed = 0;
+        for (int q = 0; q < queries; q++) {
+            int user = random.nextInt(users);
+            String prefix = random.nextBoolean()
+                    ? numbers[user].substring(0, 4 + random.nextInt(4))
+                    : names[user].substring(0, Math.min(names[user].length(), 1 + random.nextInt(4)));
+            long start = System.nanoTime();
+            List<RecipientIndex.Suggestion> found = index.complete(prefix, k);
+            completions.record(System.nanoTime() - start);
+            if (q < checked) {
+                start = System.nanoTime();
+                List<Double> expected = scan(scores, prefix, k);
+                scans.record(System.nanoTime() - start);
+                if (!sameScores(found, expected, scores)) {
+                    differed++;
+                }
+            }
+        }
+
+        System.out.printf(Locale.ROOT, "users: %d (%d keys), sends: %d in %d ms, k: %d%n",
+                users, scores.size(), sends, buildMillis, k);
+        System.out.printf("%-10s %8s %10s %10s %10s%n", "op", "count", "p50 ns", "p99 ns", "max ns");
+        print("touch", touches);
+        print("complete", completions);
+        print("scan", scans);
+        System.out.println(differed + " of " + Math.min(checked, queries) + " completions differed from the scan");
+    }
+
+    private static void print(String op, SoakTest.Histogram h) {
+        System.out.printf(Locale.ROOT, "%-10s %8d %10d %10d %10d%n", op, h.count(), h.percentile(50),
+                h.percentile(99), h.max());
+    }
+
+    // Scores of the k best keys with the prefix, best first, by looking at every key
+    private static List<Double> scan(Map<String, Double> scores, String prefix, int k) {
+        List<Double> matches = new ArrayList<>();
+        for (Map.Entry<String, Double> e : scores.entrySet()) {
+            if (e.getKey().startsWith(prefix)) {
+                matches.add(e.getValue());
+            }
+        }
+        matches.sort((a, b) -> Double.compare(b, a));
+        return matches.subList(0, Math.min(k, matches.size()));
+    }
+
+    // Ties can be listed in any order, so compare scores rather than keys
+    private static boolean sameScores(List<RecipientIndex.Suggestion> found, List<Double> expected,
+            Map<String, Double> scores) {
+        if (found.size() != expected.size()) {
+            return false;
+        }
+        for (int i = 0; i < found.size(); i++) {
+            double score = scores.get(found.get(i).key);
+            if (Math.abs(score - expected.get(i)) > 1e-9 * Math.max(1, score)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String username(Random random, int i) {
+        StringBuilder name = new StringBuilder();
+        int letters = 3 + random.nextInt(5);
+        for (int j = 0; j < letters; j++) {
+            name.append((char) ('a' + random.nextInt(26)));
+        }
+        return name.append(i).toString();
+    }
+}
@@ -0,0 +1,194 @@
+package register2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+
+import userdatastore.SymbolTable;
+
+/**
+ * Messages hash-partitioned by recipient into independent shards, each with
+ * its own recipient index and lock. Lookups for one recipient lock and scan
+ * a single shard; global queries fan out over the shards in parallel and
+ * merge the results. The shards are an in-memory index of sent messages;
+ * persisting messages is the {@link MessageStore}'s job.
+ *
+ * Recipients are matched ignoring case, like the linear search this
+ * replaced, so the shard and index key is the recipient in lower case.
+ */
+public class ShardedMessageStore {
+
+    public static final String SHARDS_PROPERTY = "quickchat.shards";
+
+    private final Shard[] shards;
+
+    private static class Shard {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        final List<Message> messages = new ArrayList<>();
+        final Map<Integer, List<Message>> byRecipient = new HashMap<>();
+
+        void add(Message m) {
+            messages.add(m);
+            byRecipient.computeIfAbsent(keySymbol(m), k -> new ArrayList<>()).add(m);
+        }
+
+        boolean remove(Message m) {
+            if (!messages.remove(m)) {
+                return false;
+            }
+            int key = keySymbol(m);
+            List<Message> forRecipient = byRecipient.get(key);
+            if (forRecipient != null) {
+                forRecipient.remove(m);
+                if (forRecipient.isEmpty()) {
+                    byRecipient.remove(key);
+                }
+            }
+            return true;
+        }
+    }
+
+    public ShardedMessageStore(int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shard count must be at least 1");
+        }
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
+    /** Shard count from -Dquickchat.shards, defaulting to the number of cores. */
+    public static int defaultShardCount() {
+        return Math.max(1, Integer.getInteger(SHARDS_PROPERTY, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    // toLowerCase returns the same string when nothing changes, as for phone numbers
+    static String key(String recipient) {
+        return recipient == null ? null : recipient.toLowerCase(Locale.ROOT);
+    }
+
+    // The symbol of the message's key; its cached recipient symbol unless case differs
+    private static int keySymbol(Message m) {
+        String key = key(m.getRecipient());
+        return Objects.equals(key, m.getRecipient()) ? m.getRecipientSymbol() : SymbolTable.shared().intern(key);
+    }
+
+    int shardFor(String recipient) {
+        return Math.floorMod(Objects.hashCode(key(recipient)), shards.length);
+    }
+
+    public void add(Message m) {
+        Shard shard = shards[shardFor(m.getRecipient())];
+        shard.lock.writeLock().lock();
+        try {
+            shard.add(m);
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+    }
+
+    /** Adds a batch, taking each shard's lock once, with the shards filled in parallel. */
+    public void addAll(List<Message> batch) {
+        List<List<Message>> perShard = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            perShard.add(new ArrayList<>());
+        }
+        for (Message m : batch) {
+            perShard.get(shardFor(m.getRecipient())).add(m);
+        }
+        IntStream.range(0, shards.length).parallel()
+                .filter(i -> !perShard.get(i).isEmpty())
+                .forEach(i -> {
+                    Shard shard = shards[i];
+                    shard.lock.writeLock().lock();
+                    try {
+                        for (Message m : perShard.get(i)) {
+                            shard.add(m);
+                        }
+                    } finally {
+                        shard.lock.writeLock().unlock();
+                    }
+                });
+    }
+
+    public boolean remove(Message m) {
+        Shard shard = shards[shardFor(m.getRecipient())];
+        shard.lock.writeLock().lock();
+        try {
+            return shard.remove(m);
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Messages to one recipient, ignoring case, in the order they were
+     * added. Touches one shard.
+     */
+    public List<Message> searchByRecipient(String recipient) {
+        int symbol = SymbolTable.shared().lookup(key(recipient));
+        if (symbol == SymbolTable.NOT_FOUND) {
+            return new ArrayList<>();
+        }
+        Shard shard = shards[shardFor(recipient)];
+        shard.lock.readLock().lock();
+        try {
+            List<Message> found = shard.byRecipient.get(symbol);
+            return found == null ? new ArrayList<>() : new ArrayList<>(found);
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+    }
+
+    /** How many messages are in the shard that holds this recipient. */
+    public int shardSize(String recipient) {
+        Shard shard = shards[shardFor(recipient)];
+        shard.lock.readLock().lock();
+        try {
+            return shard.messages.size();
+        } finally {
+            shard.lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        return Arrays.stream(shards).parallel().mapToInt(shard -> {
+            shard.lock.readLock().lock();
+            try {
+                return shard.messages.size();
+            } finally {
+                shard.lock.readLock().unlock();
+            }
+        }).sum();
+    }
+
+    /** Longest message across all shards; ties go to the earliest sent. */
+    public Message getLongestMessage() {
+        Comparator<Message> byLength = Comparator.comparingInt((Message m) -> m.getContent().length())
+                .thenComparing(Comparator.comparingLong(Message::getTimestamp).reversed());
+        return Arrays.stream(shards).parallel()
+                .map(shard -> {
+                    shard.lock.readLock().lock();
+                    try {
+                        return shard.messages.stream().max(byLength).orElse(null);
+                    } finally {
+                        shard.lock.readLock().unlock();
+                    }
+                })
+                .filter(Objects::nonNull)
+                .max(byLength)
+                .orElse(null);
+    }
+}
@@ -0,0 +1,347 @@
+package register2;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import userdatastore.userdatastore;
+
+/**
+ * Synthetic load for Message and userdatastore without the Swing forms.
+ * Run it with "ant soak" (it works in build/soak, so the real message
+ * files are left alone) or directly with java register2.SoakTest.
+ *
+ * It registers synthetic users, then runs a mix of send, store, search,
+ * delete and login operations at a fixed target rate. Bodies follow a
+ * log-normal length distribution (mostly short, a long tail up to 250
+ * characters) and recipients are picked with a Zipf-like skew, so a few
+ * contacts get most of the traffic. Latency is timed from when each
+ * operation was due, not when it started, so a stall shows up in the
+ * percentiles of everything queued behind it.
+ *
+ * Every report interval it prints, and appends to soak-report.csv, the
+ * throughput and p50/p99/p99.9/max latency per operation, heap in use and
+ * live after the last GC, and the size of the persisted files.
+ *
+ * Settings are system properties, all optional:
+ *   quickchat.soak.minutes   how long to run, default 10
+ *   quickchat.soak.rate      target operations per second, default 500
+ *   quickchat.soak.users     synthetic users, default 1000
+ *   quickchat.soak.mix       weights, default send:40,store:20,search:25,delete:5,login:10
+ *   quickchat.soak.reportSeconds  report interval, default 10
+ *   quickchat.soak.seed      random seed, default 42
+ */
+public class SoakTest {
+
+    enum Op { SEND, STORE, SEARCH, DELETE, LOGIN }
+
+    private static final String[] WORDS = {
+        "hi", "hello", "ok", "thanks", "see", "you", "tomorrow", "meeting", "at", "the", "office",
+        "call", "me", "when", "you", "can", "running", "late", "lunch", "today", "please", "send",
+        "report", "by", "friday", "great", "news", "sure", "no", "problem", "where", "are", "we",
+        "on", "my", "way", "sorry", "missed", "your", "message", "let's", "talk", "later"
+    };
+
+    private static final String[] FILES = {
+        MessageCheckpoint.SNAPSHOT_FILE, MessageCheckpoint.DELTA_FILE, MessageCheckpoint.CHECKSUM_FILE,
+        MessageCheckpoint.SNAPSHOT_FILE + MessageCheckpoint.PREVIOUS_SUFFIX,
+        MessageCheckpoint.DELTA_FILE + MessageCheckpoint.PREVIOUS_SUFFIX, MessageJson.DICTIONARY_FILE,
+        Outbox.LOG_FILE, MessageScheduler.SCHEDULE_FILE, RecipientGroups.GROUPS_FILE
+    };
+
+    private final Random random;
+    private final Op[] opTable;
+    private final List<String> usernames = new ArrayList<>();
+    private final List<String> phones = new ArrayList<>();
+    private final double[] zipf;
+    private final Histogram[] histograms = new Histogram[Op.values().length];
+    private final long[] errors = new long[Op.values().length];
+    // Live heap at the first report; before the first GC there is nothing to compare against
+    private long heapBaseline = -1;
+
+    /**
+     * Log-linear latency histogram in microseconds: 32 sub-buckets per power
+     * of two, so percentiles are within about 3% of the true value.
+     */
+    static class Histogram {
+        private static final int SUB_BITS = 5;
+        private final long[] counts = new long[64 << SUB_BITS];
+        private long total;
+        private long max;
+
+        void record(long micros) {
+            long v = Math.max(0, micros);
+            counts[index(v)]++;
+            total++;
+            max = Math.max(max, v);
+        }
+
+        private static int index(long v) {
+            if (v < (1 << SUB_BITS)) {
+                return (int) v;
+            }
+            int exp = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+            return ((exp + 1) << SUB_BITS) + (int) ((v >>> exp) & ((1 << SUB_BITS) - 1));
+        }
+
+        private static long upperBound(int index) {
+            if (index < (1 << SUB_BITS)) {
+                return index;
+            }
+            int exp = (index >>> SUB_BITS) - 1;
+            long base = (long) ((index & ((1 << SUB_BITS) - 1)) | (1 << SUB_BITS)) << exp;
+            return base + (1L << exp) - 1;
+        }
+
+        long percentile(double p) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(p / 100 * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        long count() {
+            return total;
+        }
+
+        long max() {
+            return max;
+        }
+
+        void reset() {
+            Arrays.fill(counts, 0);
+            total = 0;
+            max = 0;
+        }
+
+        /** Adds another histogram's values, e.g. one per thread merged at the end. */
+        void add(Histogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            total += other.total;
+            max = Math.max(max, other.max);
+        }
+    }
+
+    SoakTest(long seed, int users, String mix) {
+        this.random = new Random(seed);
+        this.opTable = parseMix(mix);
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+        for (int i = 0; i < users; i++) {
+            String username = "user" + i;
+            String phone = String.format("+27%09d", random.nextInt(1_000_000_000));
+            userdatastore.registerUser(username, "Passw0rd!" + i, "Synthetic", "User" + i, phone);
+            usernames.add(username);
+            phones.add(phone);
+        }
+        // Cumulative Zipf(s=1) weights over the users' numbers
+        zipf = new double[users];
+        double sum = 0;
+        for (int i = 0; i < users; i++) {
+            sum += 1.0 / (i + 1);
+            zipf[i] = sum;
+        }
+        for (int i = 0; i < users; i++) {
+            zipf[i] /= sum;
+        }
+    }
+
+    private static Op[] parseMix(String mix) {
+        List<Op> table = new ArrayList<>();
+        for (String part : mix.split(",")) {
+            String[] kv = part.trim().split(":");
+            if (kv.length != 2) {
+                throw new IllegalArgumentException("Mix entries look like send:40, got " + part);
+            }
+            Op op = Op.valueOf(kv[0].trim().toUpperCase(Locale.ROOT));
+            for (int i = Integer.parseInt(kv[1].trim()); i > 0; i--) {
+                table.add(op);
+            }
+        }
+        if (table.isEmpty()) {
+            throw new IllegalArgumentException("The mix needs at least one positive weight");
+        }
+        return table.toArray(new Op[0]);
+    }
+
+    private String recipient() {
+        int i = Arrays.binarySearch(zipf, random.nextDouble());
+        return phones.get(i < 0 ? Math.min(-i - 1, phones.size() - 1) : i);
+    }
+
+    private String body() {
+        return body(random);
+    }
+
+    // Log-normal length with a median around 35 characters, capped at 250
+    static String body(Random random) {
+        int length = (int) Math.max(1, Math.min(250, Math.round(Math.exp(3.55 + 0.8 * random.nextGaussian()))));
+        StringBuilder text = new StringBuilder(length + 12);
+        while (text.length() < length) {
+            if (text.length() > 0) {
+                text.append(' ');
+            }
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        text.setLength(length);
+        return text.toString();
+    }
+
+    private void run(Op op) {
+        switch (op) {
+            case SEND:
+                Message.sendMessage(new Message(usernames.get(random.nextInt(usernames.size())), recipient(), body()));
+                break;
+            case STORE:
+                Message.storeMessage(new Message(usernames.get(random.nextInt(usernames.size())), recipient(), body()));
+                break;
+            case SEARCH:
+                Message.searchMessagesByRecipient(recipient());
+                break;
+            case DELETE: {
+                List<Message> sent = Message.getSentMessages();
+                if (!sent.isEmpty()) {
+                    Message.deleteMessageByHash(sent.get(random.nextInt(sent.size())).createMessageHash());
+                }
+                break;
+            }
+            case LOGIN: {
+                int i = random.nextInt(usernames.size());
+                String name = random.nextInt(10) == 0 ? "nobody" + i : usernames.get(i);
+                if (userdatastore.doesUserExist(name)) {
+                    userdatastore.userCredentials.get(name).equals("Passw0rd!" + i);
+                }
+                break;
+            }
+        }
+    }
+
+    void soak(long durationMillis, double rate, long reportMillis, PrintWriter csv) {
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        long nextReport = start + TimeUnit.MILLISECONDS.toNanos(reportMillis);
+        long lastReport = start;
+        long baselineFiles = fileBytes();
+        long due = start;
+
+        header(csv);
+        while (due < end) {
+            long now = System.nanoTime();
+            if (now < due) {
+                LockSupport.parkNanos(due - now);
+                continue;
+            }
+            Op op = opTable[random.nextInt(opTable.length)];
+            try {
+                run(op);
+            } catch (RuntimeException e) {
+                errors[op.ordinal()]++;
+            }
+            histograms[op.ordinal()].record((System.nanoTime() - due) / 1000);
+            due += intervalNanos;
+
+            now = System.nanoTime();
+            if (now >= nextReport || due >= end) {
+                report(csv, (now - start) / 1_000_000_000.0, (now - lastReport) / 1_000_000_000.0, baselineFiles);
+                lastReport = now;
+                nextReport = now + TimeUnit.MILLISECONDS.toNanos(reportMillis);
+            }
+        }
+    }
+
+    private void header(PrintWriter csv) {
+        System.out.printf("%8s %-6s %8s %9s %9s %9s %9s %6s %9s %9s %9s%n",
+                "elapsed", "op", "ops/s", "p50 us", "p99 us", "p99.9 us", "max us", "errors", "heap MB", "live MB", "files KB");
+        csv.println("elapsed_s,op,ops_per_s,p50_us,p99_us,p999_us,max_us,errors,heap_used_bytes,heap_live_bytes,heap_live_growth_bytes,file_bytes,file_growth_bytes");
+    }
+
+    private void report(PrintWriter csv, double elapsed, double window, long baselineFiles) {
+        Runtime rt = Runtime.getRuntime();
+        long heap = rt.totalMemory() - rt.freeMemory();
+        long live = liveHeap();
+        if (heapBaseline < 0) {
+            heapBaseline = live;
+        }
+        long files = fileBytes();
+        for (Op op : Op.values()) {
+            Histogram h = histograms[op.ordinal()];
+            if (h.count() == 0) {
+                continue;
+            }
+            double throughput = h.count() / window;
+            System.out.printf(Locale.ROOT, "%7.0fs %-6s %8.1f %9d %9d %9d %9d %6d %9.1f %9.1f %9.1f%n",
+                    elapsed, op, throughput, h.percentile(50), h.percentile(99), h.percentile(99.9), h.max(),
+                    errors[op.ordinal()], heap / 1048576.0, live / 1048576.0, files / 1024.0);
+            csv.printf(Locale.ROOT, "%.1f,%s,%.1f,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d%n",
+                    elapsed, op, throughput, h.percentile(50), h.percentile(99), h.percentile(99.9), h.max(),
+                    errors[op.ordinal()], heap, live, live - heapBaseline, files, files - baselineFiles);
+            h.reset();
+            errors[op.ordinal()] = 0;
+        }
+        csv.flush();
+    }
+
+    // Heap left after the most recent collection of each pool; growth here is what leaks look like
+    private static long liveHeap() {
+        long live = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage afterGc = pool.getCollectionUsage();
+            if (pool.getType() == MemoryType.HEAP && afterGc != null) {
+                live += afterGc.getUsed();
+            }
+        }
+        return live;
+    }
+
+    private static long fileBytes() {
+        long total = 0;
+        for (String name : FILES) {
+            total += MessageStore.file(name).toFile().length();
+        }
+        return total;
+    }
+
+    public static void main(String[] args) throws IOException {
+        long minutes = Long.getLong("quickchat.soak.minutes", 10);
+        double rate = Double.parseDouble(System.getProperty("quickchat.soak.rate", "500"));
+        int users = Integer.getInteger("quickchat.soak.users", 1000);
+        String mix = System.getProperty("quickchat.soak.mix", "send:40,store:20,search:25,delete:5,login:10");
+        long reportSeconds = Long.getLong("quickchat.soak.reportSeconds", 10);
+        long seed = Long.getLong("quickchat.soak.seed", 42);
+        if (rate <= 0 || users < 1 || minutes < 1 || reportSeconds < 1) {
+            throw new IllegalArgumentException("Rate, users, minutes and report interval must be positive");
+        }
+
+        MessageLoader.awaitReady();
+        SoakTest test = new SoakTest(seed, users, mix);
+        System.out.printf(Locale.ROOT, "Soak: %d min at %.0f ops/s, %d users, mix %s, in %s%n",
+                minutes, rate, users, mix, MessageStore.directory().toAbsolutePath().normalize());
+        try (PrintWriter csv = new PrintWriter(new FileWriter("soak-report.csv"))) {
+            test.soak(TimeUnit.MINUTES.toMillis(minutes), rate, TimeUnit.SECONDS.toMillis(reportSeconds), csv);
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,217 @@
+package register2;
+
+import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.swing.JFrame;
+
+/**
+ * Measures how long the app takes to show its login form, and how much
+ * memory it holds at that point, under different JVM options.
+ *
+ * Each launch is a fresh JVM running Login from the given class path with
+ * -Dquickchat.startup.report=true. Login calls {@link #firstFrameShown}
+ * once its window has opened, which prints the time since the process
+ * started and the resident set size, then exits. Launches of each
+ * configuration are interleaved so drift on the machine affects them all
+ * alike, and the medians are compared at the end.
+ *
+ * The same hook trains the AppCDS archive: with -Dquickchat.startup.train=true
+ * it also loads the history, Gson and the other forms before exiting, so
+ * their classes end up in the archive too.
+ *
+ * Usage: StartupBenchmark classpath runs label=jvm-options...
+ * e.g. StartupBenchmark dist/ASSIGNMENT.jar:gson.jar 10 default= cds=-XX:SharedArchiveFile=dist/ASSIGNMENT.jsa
+ */
+public class StartupBenchmark {
+
+    public static final String REPORT_PROPERTY = "quickchat.startup.report";
+    public static final String TRAIN_PROPERTY = "quickchat.startup.train";
+
+    static final String RESULT_PREFIX = "quickchat.startup ";
+    static final long LAUNCH_TIMEOUT_SECONDS = 60;
+
+    /** Called by Login once its window has opened. Does nothing unless reporting or training. */
+    static void firstFrameShown(JFrame frame) {
+        boolean train = Boolean.getBoolean(TRAIN_PROPERTY);
+        if (!train && !Boolean.getBoolean(REPORT_PROPERTY)) {
+            return;
+        }
+        long millis = millisSinceStart();
+        long rss = residentKiB();
+        if (train) {
+            loadEverything();
+        }
+        System.out.println(RESULT_PREFIX + "firstFrameMillis=" + millis + " rssKiB=" + rss);
+        if (frame != null) {
+            frame.dispose();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Trains the archive without a display: loads the forms' classes
+     * instead of showing them. Called by Login when it can't open a window.
+     */
+    static boolean trainHeadless() {
+        if (!Boolean.getBoolean(TRAIN_PROPERTY) || !GraphicsEnvironment.isHeadless()) {
+            return false;
+        }
+        firstFrameShown(null);
+        return true;
+    }
+
+    // What a session touches soon after login: the history, its JSON and the other forms
+    private static void loadEverything() {
+        MessageLoader.awaitReady();
+        String json = MessageJson.gson().toJson(Message.getStoredMessages());
+        MessageJson.gson().fromJson(json, Message[].class);
+        loadClass("register2.Quickchat");
+        loadClass("register2.register2");
+        loadClass("javax.swing.JOptionPane");
+        loadClass("javax.swing.ProgressMonitor");
+    }
+
+    private static void loadClass(String name) {
+        try {
+            Class.forName(name, false, StartupBenchmark.class.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            System.out.println("Could not load " + name);
+        }
+    }
+
+    private static long millisSinceStart() {
+        long now = System.currentTimeMillis();
+        return ProcessHandle.current().info().startInstant()
+                .map(start -> now - start.toEpochMilli())
+                .orElse(-1L);
+    }
+
+    // VmRSS from /proc; -1 where there is no /proc
+    private static long residentKiB() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.UTF_8)) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not Linux
+        }
+        return -1;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("Usage: StartupBenchmark classpath runs label=jvm-options...");
+            System.exit(2);
+        }
+        String classpath = args[0];
+        int runs = Integer.parseInt(args[1]);
+        Map<String, List<String>> configs = new LinkedHashMap<>();
+        for (int i = 2; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            String options = args[i].substring(eq + 1).trim();
+            configs.put(args[i].substring(0, eq),
+                    options.isEmpty() ? Collections.<String>emptyList() : Arrays.asList(options.split("\\s+")));
+        }
+
+        Map<String, List<long[]>> results = new LinkedHashMap<>();
+        for (String label : configs.keySet()) {
+            results.put(label, new ArrayList<>());
+        }
+        // One launch of each first, not counted: warms the OS file cache
+        for (Map.Entry<String, List<String>> config : configs.entrySet()) {
+            launch(classpath, config.getValue());
+        }
+        for (int run = 1; run <= runs; run++) {
+            for (Map.Entry<String, List<String>> config : configs.entrySet()) {
+                long[] result = launch(classpath, config.getValue());
+                results.get(config.getKey()).add(result);
+                System.out.println("run " + run + " " + config.getKey() + ": " + result[0] + " ms, " + result[1] / 1024 + " MiB");
+            }
+        }
+
+        System.out.println();
+        System.out.printf("%-12s %10s %10s %10s %12s%n", "config", "median ms", "min ms", "max ms", "median MiB");
+        long baseline = -1;
+        for (Map.Entry<String, List<long[]>> entry : results.entrySet()) {
+            long[] millis = column(entry.getValue(), 0);
+            long[] rss = column(entry.getValue(), 1);
+            long median = median(millis);
+            System.out.printf("%-12s %10d %10d %10d %12.1f", entry.getKey(), median, millis[0], millis[millis.length - 1],
+                    median(rss) / 1024.0);
+            if (baseline < 0) {
+                baseline = median;
+                System.out.println();
+            } else {
+                System.out.printf("   %+.0f%%%n", 100.0 * (median - baseline) / baseline);
+            }
+        }
+    }
+
+    // Launches the app once and returns {first frame millis, RSS KiB}
+    private static long[] launch(String classpath, List<String> options) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(options);
+        command.add("-D" + REPORT_PROPERTY + "=true");
+        command.add("-cp");
+        command.add(classpath);
+        command.add(Login.class.getName());
+        File log = File.createTempFile("startup", ".log");
+        try {
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+            if (!process.waitFor(LAUNCH_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+            List<String> output = Files.readAllLines(log.toPath(), StandardCharsets.UTF_8);
+            for (String line : output) {
+                if (line.startsWith(RESULT_PREFIX)) {
+                    return parse(line);
+                }
+            }
+            throw new IllegalStateException("No startup report from " + command + ":\n" + String.join("\n", output));
+        } finally {
+            log.delete();
+        }
+    }
+
+    private static long[] parse(String result) {
+        long millis = 0;
+        long rss = 0;
+        for (String field : result.substring(RESULT_PREFIX.length()).split(" ")) {
+            String[] pair = field.split("=");
+            if (pair[0].equals("firstFrameMillis")) {
+                millis = Long.parseLong(pair[1]);
+            } else if (pair[0].equals("rssKiB")) {
+                rss = Long.parseLong(pair[1]);
+            }
+        }
+        return new long[] {millis, rss};
+    }
+
+    private static long[] column(List<long[]> rows, int index) {
+        long[] values = new long[rows.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = rows.get(i)[index];
+        }
+        Arrays.sort(values);
+        return values;
+    }
+
+    private static long median(long[] sorted) {
+        int mid = sorted.length / 2;
+        return sorted.length % 2 == 1 ? sorted[mid] : (sorted[mid - 1] + sorted[mid]) / 2;
+    }
+}
@@ -0,0 +1,140 @@
+package register2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import userdatastore.LoginThrottle;
+
+/**
+ * Measures LoginThrottle under adversarial load. Run it with
+ * "ant throttle-benchmark" or directly with java register2.ThrottleBenchmark.
+ *
+ * Each scenario runs attacker threads against one LoginThrottle for a fixed
+ * time while a prober makes a handful of honest attempts, each user staying
+ * under the limit:
+ *   hot       every attacker hammers the same few usernames, so all threads
+ *             contend on the same counters
+ *   spray     every attempt uses a new username, filling the sketch
+ *   turnover  the hot load with a window of a few milliseconds, so buckets
+ *             are cleared and claimed all the time
+ * For each it prints attempts per second, the p50/p99/max latency of one
+ * tryAcquire in nanoseconds (every 64th attempt is timed), the share of
+ * attacker attempts let through, and the share of honest attempts refused.
+ * The last is what collisions in the sketch cost real users, with each
+ * other as well as with the attackers.
+ *
+ * Settings are system properties, all optional:
+ *   quickchat.throttlebench.threads   attacker threads, default the number of cores, at least 4
+ *   quickchat.throttlebench.seconds   seconds per scenario, default 5
+ *   quickchat.throttlebench.max       attempts allowed per window, default 5
+ *   quickchat.throttlebench.windowMs  window for hot and spray, default 60000
+ *   quickchat.throttlebench.hotKeys   usernames in the hot set, default 16
+ *   quickchat.throttlebench.users     honest users probed, default 200
+ */
+public class ThrottleBenchmark {
+
+    private static final int SAMPLE_EVERY = 64;
+
+    private final int threads;
+    private final long millis;
+    private final int maxAttempts;
+    private final int hotKeys;
+    private final int users;
+
+    ThrottleBenchmark(int threads, long millis, int maxAttempts, int hotKeys, int users) {
+        this.threads = threads;
+        this.millis = millis;
+        this.maxAttempts = maxAttempts;
+        this.hotKeys = hotKeys;
+        this.users = users;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = Integer.getInteger("quickchat.throttlebench.threads",
+                Math.max(4, Runtime.getRuntime().availableProcessors()));
+        int seconds = Integer.getInteger("quickchat.throttlebench.seconds", 5);
+        int maxAttempts = Integer.getInteger("quickchat.throttlebench.max", 5);
+        long window = Long.getLong("quickchat.throttlebench.windowMs", 60000);
+        int hotKeys = Integer.getInteger("quickchat.throttlebench.hotKeys", 16);
+        int users = Integer.getInteger("quickchat.throttlebench.users", 200);
+
+        ThrottleBenchmark bench = new ThrottleBenchmark(threads, seconds * 1000L, maxAttempts, hotKeys, users);
+        System.out.println("attacker threads: " + threads + ", " + seconds + " s per scenario, limit "
+                + maxAttempts + " per window");
+        System.out.printf("%-9s %12s %8s %8s %8s %10s %10s%n",
+                "scenario", "attempts/s", "p50 ns", "p99 ns", "max ns", "let in", "refused");
+        bench.run("hot", window, false);
+        bench.run("spray", window, true);
+        bench.run("turnover", 6 * 4, false);
+    }
+
+    private void run(String scenario, long window, boolean spray) throws InterruptedException {
+        LoginThrottle throttle = new LoginThrottle(maxAttempts, window);
+        long deadline = System.currentTimeMillis() + millis;
+        AtomicLong attempts = new AtomicLong();
+        AtomicLong allowed = new AtomicLong();
+        List<SoakTest.Histogram> latencies = new ArrayList<>();
+        List<Thread> attackers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            SoakTest.Histogram latency = new SoakTest.Histogram();
+            latencies.add(latency);
+            int thread = t;
+            Thread attacker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long count = 0;
+                long let = 0;
+                long sprayed = 0;
+                while ((count & 1023) != 0 || System.currentTimeMillis() < deadline) {
+                    String key = spray ? "spray-" + thread + "-" + sprayed++ : "hot" + random.nextInt(hotKeys);
+                    boolean ok;
+                    if (count % SAMPLE_EVERY == 0) {
+                        long start = System.nanoTime();
+                        ok = throttle.tryAcquire(key, System.currentTimeMillis());
+                        latency.record(System.nanoTime() - start);
+                    } else {
+                        ok = throttle.tryAcquire(key, System.currentTimeMillis());
+                    }
+                    if (ok) {
+                        let++;
+                    }
+                    count++;
+                }
+                attempts.addAndGet(count);
+                allowed.addAndGet(let);
+            }, "attacker-" + t);
+            attackers.add(attacker);
+            attacker.start();
+        }
+
+        // Honest users spread their attempts over the run, never more than the limit allows
+        long honest = 0;
+        long refused = 0;
+        int perUser = Math.max(1, maxAttempts - 1);
+        long began = System.currentTimeMillis();
+        for (int round = 0; round < perUser; round++) {
+            for (int u = 0; u < users; u++) {
+                if (!throttle.tryAcquire("user" + u, System.currentTimeMillis())) {
+                    refused++;
+                }
+                honest++;
+            }
+            long next = began + millis * (round + 1) / perUser;
+            Thread.sleep(Math.max(0, next - System.currentTimeMillis()));
+        }
+        for (Thread attacker : attackers) {
+            attacker.join();
+        }
+        long elapsed = System.currentTimeMillis() - began;
+
+        SoakTest.Histogram latency = new SoakTest.Histogram();
+        for (SoakTest.Histogram h : latencies) {
+            latency.add(h);
+        }
+        System.out.printf(Locale.ROOT, "%-9s %12.0f %8d %8d %8d %9.2f%% %9.2f%%%n", scenario,
+                attempts.get() / (elapsed / 1000.0), latency.percentile(50), latency.percentile(99), latency.max(),
+                100.0 * allowed.get() / attempts.get(), 100.0 * refused / honest);
+    }
+}
@@ -0,0 +1,177 @@
+package register2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel: {@link #LEVELS} wheels of {@link #SLOTS} slots,
+ * each level's slot spanning a whole turn of the level below. A timer goes
+ * into the lowest level whose range covers it, so scheduling and cancelling
+ * are O(1) whatever the number of pending timers. When a level finishes a
+ * turn, the next level's current slot is cascaded down into it.
+ *
+ * With one-second ticks the levels reach about 194 days; anything further
+ * out waits in an overflow list that is re-sorted once per top-level turn.
+ *
+ * Not thread-safe; callers lock around it.
+ */
+public class TimingWheel<T> {
+
+    static final int SLOT_BITS = 6;
+    static final int SLOTS = 1 << SLOT_BITS;
+    static final int LEVELS = 4;
+
+    private final long tickMillis;
+    private final Slot<T>[][] levels;
+    private final Slot<T> overflow = new Slot<>();
+    private final Slot<T> overdue = new Slot<>();
+    private long currentTick;
+    private int size;
+
+    /** A scheduled item; hand it back to {@link #cancel} to drop it. */
+    public static final class Timer<T> {
+        final T item;
+        final long dueTick;
+        Timer<T> prev;
+        Timer<T> next;
+        Slot<T> slot;
+
+        Timer(T item, long dueTick) {
+            this.item = item;
+            this.dueTick = dueTick;
+        }
+
+        public T getItem() {
+            return item;
+        }
+    }
+
+    // Doubly linked list with a sentinel, so unlinking a timer is O(1)
+    private static final class Slot<T> {
+        final Timer<T> head = new Timer<>(null, 0);
+
+        Slot() {
+            head.prev = head;
+            head.next = head;
+        }
+
+        void add(Timer<T> timer) {
+            timer.slot = this;
+            timer.prev = head.prev;
+            timer.next = head;
+            head.prev.next = timer;
+            head.prev = timer;
+        }
+
+        static <T> void unlink(Timer<T> timer) {
+            timer.prev.next = timer.next;
+            timer.next.prev = timer.prev;
+            timer.prev = null;
+            timer.next = null;
+            timer.slot = null;
+        }
+
+        /** Unlinks and returns every timer in the slot. */
+        List<Timer<T>> drain() {
+            List<Timer<T>> timers = new ArrayList<>();
+            Timer<T> t = head.next;
+            while (t != head) {
+                Timer<T> next = t.next;
+                unlink(t);
+                timers.add(t);
+                t = next;
+            }
+            return timers;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(long tickMillis, long nowMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("Tick must be positive");
+        }
+        this.tickMillis = tickMillis;
+        this.currentTick = nowMillis / tickMillis;
+        this.levels = (Slot<T>[][]) new Slot[LEVELS][SLOTS];
+        for (Slot<T>[] level : levels) {
+            for (int i = 0; i < SLOTS; i++) {
+                level[i] = new Slot<>();
+            }
+        }
+    }
+
+    /** Schedules the item for the given time. Times already past fire on the next advance. */
+    public Timer<T> schedule(T item, long dueMillis) {
+        Timer<T> timer = new Timer<>(item, Math.floorDiv(dueMillis, tickMillis));
+        size++;
+        place(timer);
+        return timer;
+    }
+
+    /** Removes a pending timer. Returns false if it already fired or was cancelled. */
+    public boolean cancel(Timer<T> timer) {
+        if (timer == null || timer.slot == null) {
+            return false;
+        }
+        Slot.unlink(timer);
+        size--;
+        return true;
+    }
+
+    /** Moves the wheel up to the given time and returns every item that came due. */
+    public List<T> advance(long nowMillis) {
+        List<T> due = new ArrayList<>();
+        long target = nowMillis / tickMillis;
+        while (currentTick < target) {
+            currentTick++;
+            cascade();
+            for (Timer<T> timer : levels[0][(int) (currentTick & (SLOTS - 1))].drain()) {
+                due.add(timer.item);
+            }
+        }
+        // Scheduled in the past, or cascaded down onto the current tick
+        for (Timer<T> timer : overdue.drain()) {
+            due.add(timer.item);
+        }
+        size -= due.size();
+        return due;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void place(Timer<T> timer) {
+        long delta = timer.dueTick - currentTick;
+        if (delta <= 0) {
+            overdue.add(timer);
+            return;
+        }
+        for (int level = 0; level < LEVELS; level++) {
+            if (delta < 1L << (SLOT_BITS * (level + 1))) {
+                int index = (int) ((timer.dueTick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+                levels[level][index].add(timer);
+                return;
+            }
+        }
+        overflow.add(timer);
+    }
+
+    // On each level's wrap, pull the next slot of the level above down a level
+    private void cascade() {
+        for (int level = 1; level < LEVELS; level++) {
+            if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+                return;
+            }
+            int index = (int) ((currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+            for (Timer<T> timer : levels[level][index].drain()) {
+                place(timer);
+            }
+        }
+        if ((currentTick & ((1L << (SLOT_BITS * LEVELS)) - 1)) == 0) {
+            for (Timer<T> timer : overflow.drain()) {
+                place(timer);
+            }
+        }
+    }
+}
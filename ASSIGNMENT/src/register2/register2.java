@@ -3,6 +3,7 @@
  * Click nbfs://nbhost/SystemFileSystem/Templates/GUIForms/JFrame.java to edit this template
  */
 package register2;
+import userdatastore.LoginThrottle;
 import userdatastore.userdatastore; 
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -216,6 +217,10 @@ public class register2 extends javax.swing.JFrame {
         String confirmpassword=new String(confirmPasswordField.getPassword());
         String phonenumber=phonenoTextField.getText();
         
+  if (!LoginThrottle.allowRegistration(LoginThrottle.localSource())) {
+    JOptionPane.showMessageDialog(this, "Too many registration attempts. Please try again later.");
+    return;
+}
   if (!CheckUsername(username)) {
     JOptionPane.showMessageDialog(this, "Username is not correctly formatted. It must contain an underscore and be no more than 5 characters long.");
     return;
@@ -234,14 +239,12 @@ if (!CheckCellphone(phonenumber)) {
     JOptionPane.showMessageDialog(this, "Invalid phone number. Please enter a South African number in the format: +27XXXXXXXXX or 27XXXXXXXXX.");
     return;
 }     
-if (userdatastore.userCredentials.containsKey(username)){
+if (userdatastore.doesUserExist(username)){
     JOptionPane.showMessageDialog(this,"Username already exists");
     return;
     }                                              
-userdatastore.userCredentials.put(username, password);
-userdatastore.userphoneno.put(username, phonenumber);
-userdatastore.userFirstname.put(username, firstname);
-userdatastore.userLastname.put(username, lastname);
+userdatastore.registerUser(username, password, firstname, lastname, phonenumber);
+RecipientIndex.recordUser(username, phonenumber);
 
 int results=JOptionPane.showConfirmDialog(null,"Are you sure you want to register? " , "Register Confirmation" , JOptionPane.YES_NO_OPTION);
 if(results==JOptionPane.YES_OPTION){
@@ -0,0 +1,132 @@
+package userdatastore;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sliding-window attempt limiter checked before any password work is done.
+ *
+ * Counts are kept per time bucket in a small count-min sketch: every key
+ * bumps one counter in each of {@link #ROWS} rows of striped atomic counters,
+ * and its estimate is the smallest of those counts summed over the buckets
+ * still inside the window. Memory is fixed no matter how many usernames or
+ * sources an attacker cycles through, and hash collisions only ever make a
+ * key look busier, not quieter. Old buckets are cleared as time moves onto
+ * them, so counts decay without a cleanup thread. No locks are taken: the
+ * first attempt in a new bucket time claims the bucket, clears it and only
+ * then publishes its epoch, so nothing counted in the new epoch is wiped;
+ * attempts that need the bucket meanwhile spin for the few microseconds
+ * the clearing takes. An attempt that races a turnover can land in the
+ * newer bucket, which again only overcounts.
+ */
+public class LoginThrottle {
+
+    static final int ROWS = 2;
+    static final int WIDTH = 2048;
+    static final int BUCKETS = 6;
+    // Epoch of a bucket that one thread is clearing
+    private static final long CLEARING = Long.MIN_VALUE;
+
+    private static final LoginThrottle perUser = new LoginThrottle(5, 60_000);
+    private static final LoginThrottle perSource = new LoginThrottle(20, 60_000);
+    private static final LoginThrottle registrations = new LoginThrottle(10, 600_000);
+
+    private final int maxAttempts;
+    private final long bucketMillis;
+    // counters[bucket] holds ROWS * WIDTH counters
+    private final AtomicLongArray[] counters = new AtomicLongArray[BUCKETS];
+    private final AtomicLongArray bucketEpochs = new AtomicLongArray(BUCKETS);
+
+    public LoginThrottle(int maxAttempts, long windowMillis) {
+        if (maxAttempts < 1 || windowMillis < BUCKETS) {
+            throw new IllegalArgumentException("Need at least one attempt and a window of " + BUCKETS + "ms");
+        }
+        this.maxAttempts = maxAttempts;
+        this.bucketMillis = windowMillis / BUCKETS;
+        for (int i = 0; i < BUCKETS; i++) {
+            counters[i] = new AtomicLongArray(ROWS * WIDTH);
+            bucketEpochs.set(i, -1);
+        }
+    }
+
+    /** Checks the per-username and per-source limits for a login attempt. */
+    public static boolean allowLogin(String username, String source) {
+        // Evaluate both so the source is charged even for unknown usernames
+        boolean userOk = perUser.tryAcquire(username == null ? "" : username, System.currentTimeMillis());
+        boolean sourceOk = perSource.tryAcquire(source, System.currentTimeMillis());
+        return userOk && sourceOk;
+    }
+
+    /** Checks the per-source limit for a registration attempt. */
+    public static boolean allowRegistration(String source) {
+        return registrations.tryAcquire(source, System.currentTimeMillis());
+    }
+
+    /** Identifies where attempts come from. A desktop client has one source: this OS user on this machine. */
+    public static String localSource() {
+        return "local:" + System.getProperty("user.name", "unknown");
+    }
+
+    /** Records an attempt for the key and returns false if it is over the limit. */
+    public boolean tryAcquire(String key, long nowMillis) {
+        long epoch = nowMillis / bucketMillis;
+        AtomicLongArray bucket = bucketFor(epoch);
+        int h1 = index(key, 0);
+        int h2 = index(key, 1);
+        long c1 = bucket.incrementAndGet(h1);
+        long c2 = bucket.incrementAndGet(WIDTH + h2);
+        long estimate = Math.min(c1, c2) + olderCounts(h1, h2, epoch);
+        return estimate <= maxAttempts;
+    }
+
+    /** Attempts recorded for the key within the window, possibly overcounted. */
+    public long estimate(String key, long nowMillis) {
+        long epoch = nowMillis / bucketMillis;
+        int h1 = index(key, 0);
+        int h2 = index(key, 1);
+        int current = (int) (epoch % BUCKETS);
+        long here = bucketEpochs.get(current) == epoch
+                ? Math.min(counters[current].get(h1), counters[current].get(WIDTH + h2)) : 0;
+        return here + olderCounts(h1, h2, epoch);
+    }
+
+    private long olderCounts(int h1, int h2, long epoch) {
+        long total = 0;
+        for (long e = epoch - BUCKETS + 1; e < epoch; e++) {
+            int i = (int) Math.floorMod(e, (long) BUCKETS);
+            if (bucketEpochs.get(i) == e) {
+                total += Math.min(counters[i].get(h1), counters[i].get(WIDTH + h2));
+            }
+        }
+        return total;
+    }
+
+    /** Returns the bucket for this epoch, clearing it first if it still holds an old epoch. */
+    private AtomicLongArray bucketFor(long epoch) {
+        int i = (int) (epoch % BUCKETS);
+        AtomicLongArray bucket = counters[i];
+        while (true) {
+            long seen = bucketEpochs.get(i);
+            if (seen >= epoch) {
+                // Current, or already moved on by a later attempt; counting there only overcounts
+                return bucket;
+            }
+            if (seen == CLEARING) {
+                Thread.onSpinWait();
+            } else if (bucketEpochs.compareAndSet(i, seen, CLEARING)) {
+                for (int j = 0; j < bucket.length(); j++) {
+                    bucket.set(j, 0);
+                }
+                bucketEpochs.set(i, epoch);
+                return bucket;
+            }
+        }
+    }
+
+    private static int index(String key, int row) {
+        int h = key.hashCode() * (row == 0 ? 0x9E3779B9 : 0x85EBCA6B);
+        h ^= h >>> 16;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 13;
+        return h & (WIDTH - 1);
+    }
+}
@@ -0,0 +1,179 @@
+package userdatastore;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logged-in sessions, keyed by an opaque random token. Validating a token is
+ * one hash lookup and pushes its expiry forward (sliding expiry).
+ *
+ * Expired sessions are reaped by a hashed timer wheel: each session sits in
+ * the slot for the tick it was due to expire on. Every tick the reaper only
+ * looks at the current slot; sessions that were used in the meantime are
+ * moved to the slot of their new expiry instead of being dropped.
+ */
+public class SessionRegistry {
+
+    public static final String TTL_PROPERTY = "quickchat.session.ttlMinutes";
+
+    static final int WHEEL_SLOTS = 512;
+
+    private static final SessionRegistry shared = new SessionRegistry(
+            TimeUnit.MINUTES.toMillis(Long.getLong(TTL_PROPERTY, 30)), 1000);
+
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final long ttlMillis;
+    private final long tickMillis;
+    private final Queue<Session>[] wheel;
+    private final long startMillis = System.currentTimeMillis();
+    private long currentTick = 0;
+    private ScheduledExecutorService reaper;
+
+    private static class Session {
+        final String token;
+        final String username;
+        volatile long expiresAt;
+
+        Session(String token, String username, long expiresAt) {
+            this.token = token;
+            this.username = username;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    SessionRegistry(long ttlMillis, long tickMillis) {
+        if (ttlMillis <= 0 || tickMillis <= 0) {
+            throw new IllegalArgumentException("TTL and tick must be positive");
+        }
+        this.ttlMillis = ttlMillis;
+        this.tickMillis = tickMillis;
+        this.wheel = (Queue<Session>[]) new Queue[WHEEL_SLOTS];
+        for (int i = 0; i < WHEEL_SLOTS; i++) {
+            wheel[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    /** The registry used by the Login and Quickchat forms. */
+    public static SessionRegistry shared() {
+        return shared;
+    }
+
+    /** Opens a session for a user who has already been authenticated and returns its token. */
+    public String login(String username) {
+        if (username == null) {
+            throw new IllegalArgumentException("Username is required");
+        }
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        Session session = new Session(token, SymbolTable.shared().canonical(username),
+                System.currentTimeMillis() + ttlMillis);
+        sessions.put(token, session);
+        schedule(session);
+        startReaper();
+        return token;
+    }
+
+    /**
+     * Returns the username for a live session and extends its expiry, or
+     * null if the token is unknown or has expired.
+     */
+    public String validate(String token) {
+        if (token == null) {
+            return null;
+        }
+        Session session = sessions.get(token);
+        if (session == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (session.expiresAt <= now) {
+            sessions.remove(token, session);
+            return null;
+        }
+        session.expiresAt = now + ttlMillis;
+        return session.username;
+    }
+
+    public void logout(String token) {
+        if (token != null) {
+            sessions.remove(token);
+        }
+    }
+
+    public int activeSessions() {
+        return sessions.size();
+    }
+
+    private int slotFor(Session session) {
+        return slotFor(Math.max(0, (session.expiresAt - startMillis) / tickMillis));
+    }
+
+    private static int slotFor(long tick) {
+        return (int) (tick % WHEEL_SLOTS);
+    }
+
+    private void schedule(Session session) {
+        wheel[slotFor(session)].add(session);
+    }
+
+    private synchronized void startReaper() {
+        if (reaper != null) {
+            return;
+        }
+        reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "session-reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        currentTick = (System.currentTimeMillis() - startMillis) / tickMillis;
+        reaper.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Advances the wheel to the current time, reaping every slot passed over. */
+    void tick() {
+        long nowTick = (System.currentTimeMillis() - startMillis) / tickMillis;
+        long now = System.currentTimeMillis();
+        while (currentTick <= nowTick) {
+            Queue<Session> slot = wheel[slotFor(currentTick)];
+            Iterator<Session> it = slot.iterator();
+            while (it.hasNext()) {
+                Session session = it.next();
+                if (sessions.get(session.token) != session) {
+                    it.remove(); // logged out
+                } else if (session.expiresAt <= now) {
+                    it.remove();
+                    sessions.remove(session.token, session);
+                } else if ((session.expiresAt - startMillis) / tickMillis <= currentTick) {
+                    // Expires later in this tick; look again next tick
+                    it.remove();
+                    wheel[slotFor(currentTick + 1)].add(session);
+                } else if (slotFor(session) != slotFor(currentTick)) {
+                    // Used since it was scheduled; move it to its new slot.
+                    // Sessions a whole turn away or more just stay put.
+                    it.remove();
+                    schedule(session);
+                }
+            }
+            currentTick++;
+        }
+    }
+
+    /** Stops the reaper thread. Sessions stay valid until they expire. */
+    public synchronized void shutdown() {
+        if (reaper != null) {
+            reaper.shutdownNow();
+            reaper = null;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package userdatastore;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Append-only table mapping usernames and phone numbers to small int IDs.
+ * Once a string is interned its ID never changes, so messages and indexes can
+ * compare and hash the int instead of the string, and every holder shares
+ * one canonical String instance.
+ *
+ * Lookups of known strings are lock free; only the first intern of a new
+ * string takes the table lock.
+ */
+public class SymbolTable {
+
+    public static final int NOT_FOUND = -1;
+
+    private static final SymbolTable shared = new SymbolTable();
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[64];
+    private volatile int size = 0;
+
+    /** The table shared by Message, its indexes and userdatastore. */
+    public static SymbolTable shared() {
+        return shared;
+    }
+
+    /** Returns the ID for the string, assigning the next one if it is new. */
+    public int intern(String value) {
+        Integer id = ids.get(value);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(value);
+            if (id != null) {
+                return id;
+            }
+            int next = size;
+            String[] current = names;
+            if (next == current.length) {
+                current = Arrays.copyOf(current, current.length * 2);
+            }
+            current[next] = value;
+            names = current;
+            size = next + 1;
+            ids.put(value, next);
+            return next;
+        }
+    }
+
+    /** Returns the ID for the string, or NOT_FOUND without adding it. */
+    public int lookup(String value) {
+        if (value == null) {
+            return NOT_FOUND;
+        }
+        Integer id = ids.get(value);
+        return id == null ? NOT_FOUND : id;
+    }
+
+    /** Returns the string for an ID handed out by intern(). */
+    public String name(int id) {
+        if (id < 0 || id >= size) {
+            throw new IllegalArgumentException("Unknown symbol: " + id);
+        }
+        return names[id];
+    }
+
+    /** Interns the string and returns the shared instance, or null for null. */
+    public String canonical(String value) {
+        return value == null ? null : name(intern(value));
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,122 @@
+package userdatastore;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bloom filter over registered usernames. A "no" is definite, so most
+ * "is this username taken?" checks for new names never reach the user
+ * store; a "maybe" still has to be confirmed there.
+ *
+ * Bits are set with atomic ORs so registrations can run concurrently with
+ * lookups. When more names are added than it was sized for, the filter
+ * should be rebuilt larger from the full set of names.
+ */
+public class UsernameFilter {
+
+    private final AtomicLongArray bits;
+    private final int bitCount;
+    private final int hashCount;
+    private final int expectedNames;
+    private final LongAdder added = new LongAdder();
+
+    // For the observed false-positive rate; "maybe" answers are confirmed
+    // against the store by the caller via recordConfirmation()
+    private final LongAdder definiteNos = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+
+    /** Sizes the filter for the expected number of names at the target false-positive rate. */
+    public UsernameFilter(int expectedNames, double falsePositiveRate) {
+        if (expectedNames < 1 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Need a positive capacity and a rate between 0 and 1");
+        }
+        double ln2 = Math.log(2);
+        long m = (long) Math.ceil(-expectedNames * Math.log(falsePositiveRate) / (ln2 * ln2));
+        this.bitCount = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, m));
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedNames * ln2));
+        this.expectedNames = expectedNames;
+        this.bits = new AtomicLongArray((bitCount + 63) / 64);
+    }
+
+    /** Builds a filter holding all the given names, with room to grow. */
+    public static UsernameFilter of(Collection<String> names, double falsePositiveRate) {
+        UsernameFilter filter = new UsernameFilter(Math.max(1024, names.size() * 2), falsePositiveRate);
+        for (String name : names) {
+            filter.add(name);
+        }
+        return filter;
+    }
+
+    public void add(String name) {
+        long hash = hash64(name);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            int bit = Math.floorMod(h1 + i * h2, bitCount);
+            int word = bit >>> 6;
+            long mask = 1L << (bit & 63);
+            long current = bits.get(word);
+            while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask)) {
+                current = bits.get(word);
+            }
+        }
+        added.increment();
+    }
+
+    /** False means the name was definitely never added. */
+    public boolean mightContain(String name) {
+        long hash = hash64(name);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            int bit = Math.floorMod(h1 + i * h2, bitCount);
+            if ((bits.get(bit >>> 6) & (1L << (bit & 63))) == 0) {
+                definiteNos.increment();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Records whether a "maybe" answer turned out to be a real name, for the observed rate. */
+    public void recordConfirmation(boolean actuallyPresent) {
+        if (!actuallyPresent) {
+            falsePositives.increment();
+        }
+    }
+
+    /** Share of lookups for unregistered names that still got a "maybe". */
+    public double observedFalsePositiveRate() {
+        long wrong = falsePositives.sum();
+        long absent = definiteNos.sum() + wrong;
+        return absent == 0 ? 0 : (double) wrong / absent;
+    }
+
+    /** Expected false-positive rate for a name that was never added, given how full the filter is. */
+    public double expectedFalsePositiveRate() {
+        double fill = 1 - Math.exp(-(double) hashCount * added.sum() / bitCount);
+        return Math.pow(fill, hashCount);
+    }
+
+    /** True once more names were added than the filter was sized for. */
+    public boolean isOverCapacity() {
+        return added.sum() > expectedNames;
+    }
+
+    // 64-bit FNV-1a over UTF-8, then a murmur finaliser to spread both halves
+    private static long hash64(String name) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
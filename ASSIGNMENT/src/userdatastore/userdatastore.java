@@ -8,26 +8,47 @@ public class userdatastore {
     public static HashMap<String,String>userphoneno=new HashMap<>();
     public static HashMap<String,String>userFirstname=new HashMap<>();
     public static HashMap<String,String>userLastname=new HashMap<>();
-    
-    public static String currentLoggedInuser=null;
+
+    // Answers "definitely not registered" without touching the maps above
+    private static volatile UsernameFilter usernameFilter=UsernameFilter.of(userCredentials.keySet(), 0.01);
     static{
-        userCredentials.put("john.doe", "Password123");
-        userFirstname.put("john.doe", "John");
-        userLastname.put("john.doe", "Doe");
-        userphoneno.put("john.doe", "+27609876543");
+        registerUser("john.doe", "Password123", "John", "Doe", "+27609876543");
     }
     public static boolean registerUser(String username, String password, String firstName, String lastName, String phoneNo) {
-        if (userCredentials.containsKey(username)) {
+        if (doesUserExist(username)) {
             return false; // Username already exists
         }
+        // Share one String per username/number with Message via the symbol table
+        username = SymbolTable.shared().canonical(username);
+        phoneNo = SymbolTable.shared().canonical(phoneNo);
         userCredentials.put(username, password);
         userFirstname.put(username, firstName);
         userLastname.put(username, lastName);
         userphoneno.put(username, phoneNo);
+        if (usernameFilter.isOverCapacity()) {
+            rebuildUsernameFilter();
+        } else {
+            usernameFilter.add(username);
+        }
         return true;
     }
         public static boolean doesUserExist(String username) {
-        return userCredentials.containsKey(username);
+        if (username == null || !usernameFilter.mightContain(username)) {
+            return false;
+        }
+        boolean exists = userCredentials.containsKey(username);
+        usernameFilter.recordConfirmation(exists);
+        return exists;
+    }
+
+    /** Rebuilds the username filter from every registered username, e.g. after a bulk load. */
+    public static void rebuildUsernameFilter() {
+        usernameFilter = UsernameFilter.of(userCredentials.keySet(), 0.01);
+    }
+
+    /** Share of lookups for free usernames that the filter could not rule out. */
+    public static double usernameFilterFalsePositiveRate() {
+        return usernameFilter.observedFalsePositiveRate();
     }
 
 }